@@ -0,0 +1,144 @@
+package io.jenkins.nodes;
+
+import java.util.List;
+
+import javax.annotation.Nonnull;
+
+import org.apache.commons.lang.StringUtils;
+import org.fr123k.jenkins.plugins.agents.LaunchBackend;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+import org.kohsuke.stapler.QueryParameter;
+
+import hudson.Extension;
+import hudson.model.AbstractDescribableImpl;
+import hudson.model.Descriptor;
+import hudson.util.FormValidation;
+
+/**
+ * Agent settings for the labels matching a pattern like {@code golang-*}.
+ * Empty values fall back to the global configuration.
+ */
+public class AgentTemplate extends AbstractDescribableImpl<AgentTemplate> {
+
+    private final String labelPattern;
+    private String agentImage, agentWorkDir, agentProvisionJob, agentDecomissionJob;
+    private int agentExecutors, idleTimeout, maxAgents, maxInFlight;
+    private LaunchBackend launchBackend;
+
+    @DataBoundConstructor
+    public AgentTemplate(String labelPattern) {
+        this.labelPattern = labelPattern;
+    }
+
+    public String getLabelPattern() { return labelPattern; }
+
+    public String getAgentImage() { return agentImage; }
+    @DataBoundSetter public void setAgentImage(String agentImage) { this.agentImage = StringUtils.trimToNull(agentImage); }
+
+    public String getAgentWorkDir() { return agentWorkDir; }
+    @DataBoundSetter public void setAgentWorkDir(String agentWorkDir) { this.agentWorkDir = StringUtils.trimToNull(agentWorkDir); }
+
+    public String getAgentProvisionJob() { return agentProvisionJob; }
+    @DataBoundSetter public void setAgentProvisionJob(String agentProvisionJob) { this.agentProvisionJob = StringUtils.trimToNull(agentProvisionJob); }
+
+    public String getAgentDecomissionJob() { return agentDecomissionJob; }
+    @DataBoundSetter public void setAgentDecomissionJob(String agentDecomissionJob) { this.agentDecomissionJob = StringUtils.trimToNull(agentDecomissionJob); }
+
+    /** @return the executors per agent or 0 to use the global value */
+    public int getAgentExecutors() { return agentExecutors; }
+    @DataBoundSetter public void setAgentExecutors(int agentExecutors) { this.agentExecutors = agentExecutors; }
+
+    /** @return the idle timeout in minutes or 0 to use the global value */
+    public int getIdleTimeout() { return idleTimeout; }
+    @DataBoundSetter public void setIdleTimeout(int idleTimeout) { this.idleTimeout = idleTimeout; }
+
+    /** @return the maximum number of agents per label or 0 to use the global value */
+    public int getMaxAgents() { return maxAgents; }
+    @DataBoundSetter public void setMaxAgents(int maxAgents) { this.maxAgents = maxAgents; }
+
+    /** @return the maximum number of agents per label that are not online yet or 0 to use the global value */
+    public int getMaxInFlight() { return maxInFlight; }
+    @DataBoundSetter public void setMaxInFlight(int maxInFlight) { this.maxInFlight = maxInFlight; }
+
+    /** @return the backend starting the agents or {@code null} to trigger the provision job */
+    public LaunchBackend getLaunchBackend() { return launchBackend; }
+    @DataBoundSetter public void setLaunchBackend(LaunchBackend launchBackend) { this.launchBackend = launchBackend; }
+
+    @Extension
+    public static class DescriptorImpl extends Descriptor<AgentTemplate> {
+        @Nonnull
+        @Override
+        public String getDisplayName() {
+            return "Agent template";
+        }
+
+        public FormValidation doCheckLabelPattern(@QueryParameter String value) {
+            if (StringUtils.isBlank(value)) {
+                return FormValidation.error("Please specify a label pattern.");
+            }
+            return FormValidation.ok();
+        }
+
+        public List<Descriptor<LaunchBackend>> getLaunchBackendDescriptors() {
+            return LaunchBackend.all();
+        }
+
+        public FormValidation doCheckAgentExecutors(@QueryParameter String value) {
+            return FormValidation.validateNonNegativeInteger(value);
+        }
+
+        public FormValidation doCheckIdleTimeout(@QueryParameter String value) {
+            return FormValidation.validateNonNegativeInteger(value);
+        }
+
+        public FormValidation doCheckMaxAgents(@QueryParameter String value) {
+            return FormValidation.validateNonNegativeInteger(value);
+        }
+
+        public FormValidation doCheckMaxInFlight(@QueryParameter String value) {
+            return FormValidation.validateNonNegativeInteger(value);
+        }
+    }
+
+    /**
+     * The settings of an agent for one label, with the template and the global configuration merged.
+     */
+    public static final class Resolved {
+        private final String label, agentImage, agentWorkDir, agentProvisionJob, agentDecomissionJob;
+        private final int agentExecutors, idleTimeout, minIdleAgents, maxAgents, maxInFlight;
+        private final LaunchBackend launchBackend;
+
+        Resolved(String label, String agentImage, String agentWorkDir, String agentProvisionJob,
+                String agentDecomissionJob, int agentExecutors, int idleTimeout, int minIdleAgents,
+                int maxAgents, int maxInFlight, LaunchBackend launchBackend) {
+            this.label = label;
+            this.agentImage = agentImage;
+            this.agentWorkDir = agentWorkDir;
+            this.agentProvisionJob = agentProvisionJob;
+            this.agentDecomissionJob = agentDecomissionJob;
+            this.agentExecutors = agentExecutors;
+            this.idleTimeout = idleTimeout;
+            this.minIdleAgents = minIdleAgents;
+            this.maxAgents = maxAgents;
+            this.maxInFlight = maxInFlight;
+            this.launchBackend = launchBackend;
+        }
+
+        public String getLabel() { return label; }
+        /** @return the image with the label placeholder replaced */
+        public String getAgentImage() { return agentImage; }
+        public String getAgentWorkDir() { return agentWorkDir; }
+        public String getAgentProvisionJob() { return agentProvisionJob; }
+        public String getAgentDecomissionJob() { return agentDecomissionJob; }
+        public int getAgentExecutors() { return agentExecutors; }
+        public int getIdleTimeout() { return idleTimeout; }
+        public int getMinIdleAgents() { return minIdleAgents; }
+        /** @return the maximum number of agents of the label or 0 for no limit */
+        public int getMaxAgents() { return maxAgents; }
+        /** @return the maximum number of agents of the label that are not online yet or 0 for no limit */
+        public int getMaxInFlight() { return maxInFlight; }
+        /** @return the backend starting the agents or {@code null} to trigger the provision job */
+        public LaunchBackend getLaunchBackend() { return launchBackend; }
+    }
+}
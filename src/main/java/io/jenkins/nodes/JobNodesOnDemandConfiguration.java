@@ -1,5 +1,15 @@
 package io.jenkins.nodes;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import hudson.BulkChange;
 import hudson.Extension;
 import hudson.model.Label;
 import hudson.util.FormValidation;
@@ -7,6 +17,9 @@ import jenkins.model.GlobalConfiguration;
 import org.apache.commons.lang.StringUtils;
 import org.kohsuke.stapler.DataBoundSetter;
 import org.kohsuke.stapler.QueryParameter;
+import org.kohsuke.stapler.StaplerRequest;
+
+import net.sf.json.JSONObject;
 
 /**
  * Example of Jenkins global configuration.
@@ -21,10 +34,100 @@ public class JobNodesOnDemandConfiguration extends GlobalConfiguration {
 
     private boolean enabled = false;
     private String agentProvisionJob, agentDecomissionJob, agentImage, agentWorkDir, gitRevision, gitUrl, revision;
+    private int agentExecutors = 1;
+    private int maxAgentsPerTick = 10;
+    private int launchTimeout = 600;
+    private int launchRetries = 1;
+    private boolean batchProvisioning = false;
+    private int batchWindow = 5;
+    private int idleTimeout = 10;
+    private int minIdleAgents = 0;
+    private int maxForecastAgents = 0;
+    private int maxAgents = 0;
+    private int maxAgentsPerLabel = 0;
+    private int maxInFlight = 0;
+    private int maxInFlightPerLabel = 0;
+    private int launchesPerMinute = 0;
+    private int breakerThreshold = 3;
+    private int breakerBackoff = 30;
+    private int forecastHorizon = 5;
+    private String labelIdleTimeouts;
+    private List<AgentTemplate> templates = new ArrayList<>();
+
+    private static volatile Snapshot current;
+    private transient volatile Snapshot snapshot;
 
     public JobNodesOnDemandConfiguration() {
         // When Jenkins is restarted, load any saved configuration from disk.
         load();
+        publish();
+    }
+
+    /**
+     * Creates a configuration with the given templates which is neither loaded from nor saved to disk
+     * and not published as the {@link #current()} one. Used to run benchmarks without Jenkins.
+     */
+    JobNodesOnDemandConfiguration(List<AgentTemplate> templates) {
+        this.enabled = true;
+        this.templates = new ArrayList<>(templates);
+        this.snapshot = new Snapshot(this);
+    }
+
+    /**
+     * The configuration the agents are provisioned with. Readers on hot paths should take the
+     * snapshot once and use it for the whole operation, so they see one consistent view even if
+     * the configuration is changed meanwhile.
+     *
+     * @return the last published configuration
+     */
+    public static Snapshot current() {
+        final Snapshot snapshot = current;
+        return snapshot != null ? snapshot : get().snapshot();
+    }
+
+    /** @return the configuration published by this instance */
+    public Snapshot snapshot() {
+        return snapshot;
+    }
+
+    private void publish() {
+        snapshot = new Snapshot(this);
+        current = snapshot;
+    }
+
+    /**
+     * Binds the whole form before the new configuration is published and saved once. The templates
+     * are replaced only once the form was bound, a form that fails to bind keeps the current ones.
+     */
+    @Override
+    public boolean configure(StaplerRequest req, JSONObject json) throws FormException {
+        try (BulkChange bc = new BulkChange(this)) {
+            final JSONObject settings = JSONObject.fromObject(json);
+            // an empty template list is not part of the submitted form
+            final Object submitted = settings.remove("templates");
+            final List<AgentTemplate> bound = submitted == null
+                    ? new ArrayList<>()
+                    : req.bindJSONToList(AgentTemplate.class, submitted);
+            req.bindJSON(this, settings);
+            templates = new ArrayList<>(bound);
+            bc.commit();
+        } catch (IOException e) {
+            throw new FormException("Failed to save the agents on demand configuration", e, "enabled");
+        }
+        return true;
+    }
+
+    /**
+     * Publishes a new {@link Snapshot} before saving. Setters called within a {@link BulkChange}
+     * are published together when the change is committed.
+     */
+    @Override
+    public synchronized void save() {
+        if (BulkChange.contains(this)) {
+            return;
+        }
+        publish();
+        super.save();
     }
 
     public boolean isEnabled() { return enabled; }
@@ -94,7 +197,7 @@ public class JobNodesOnDemandConfiguration extends GlobalConfiguration {
     }
 
     public String toAgentImage(Label label) {
-        return this.agentImage.replace("{label}", label.toString());
+        return snapshot().toAgentImage(label);
     }
 
     public String getAgentWorkDir() { return agentWorkDir; }
@@ -106,4 +209,335 @@ public class JobNodesOnDemandConfiguration extends GlobalConfiguration {
         }
         return FormValidation.ok();
     }
+
+    public int getAgentExecutors() { return agentExecutors; }
+    @DataBoundSetter public void setAgentExecutors(int agentExecutors) { this.agentExecutors = agentExecutors; save(); }
+
+    public FormValidation doCheckAgentExecutors(@QueryParameter String value) {
+        return FormValidation.validatePositiveInteger(value);
+    }
+
+    public int getMaxAgentsPerTick() { return maxAgentsPerTick; }
+    @DataBoundSetter public void setMaxAgentsPerTick(int maxAgentsPerTick) { this.maxAgentsPerTick = maxAgentsPerTick; save(); }
+
+    public FormValidation doCheckMaxAgentsPerTick(@QueryParameter String value) {
+        return FormValidation.validatePositiveInteger(value);
+    }
+
+    public int getLaunchTimeout() { return launchTimeout; }
+    @DataBoundSetter public void setLaunchTimeout(int launchTimeout) { this.launchTimeout = launchTimeout; save(); }
+
+    public FormValidation doCheckLaunchTimeout(@QueryParameter String value) {
+        return FormValidation.validatePositiveInteger(value);
+    }
+
+    public int getLaunchRetries() { return launchRetries; }
+    @DataBoundSetter public void setLaunchRetries(int launchRetries) { this.launchRetries = launchRetries; save(); }
+
+    public FormValidation doCheckLaunchRetries(@QueryParameter String value) {
+        return FormValidation.validateNonNegativeInteger(value);
+    }
+
+    public boolean isBatchProvisioning() { return batchProvisioning; }
+    @DataBoundSetter public void setBatchProvisioning(boolean batchProvisioning) { this.batchProvisioning = batchProvisioning; save(); }
+
+    public int getBatchWindow() { return batchWindow; }
+    @DataBoundSetter public void setBatchWindow(int batchWindow) { this.batchWindow = batchWindow; save(); }
+
+    public FormValidation doCheckBatchWindow(@QueryParameter String value) {
+        return FormValidation.validatePositiveInteger(value);
+    }
+
+    public int getIdleTimeout() { return idleTimeout; }
+    @DataBoundSetter public void setIdleTimeout(int idleTimeout) { this.idleTimeout = idleTimeout; save(); }
+
+    public FormValidation doCheckIdleTimeout(@QueryParameter String value) {
+        return FormValidation.validatePositiveInteger(value);
+    }
+
+    public int getMinIdleAgents() { return minIdleAgents; }
+    @DataBoundSetter public void setMinIdleAgents(int minIdleAgents) { this.minIdleAgents = minIdleAgents; save(); }
+
+    public FormValidation doCheckMinIdleAgents(@QueryParameter String value) {
+        return FormValidation.validateNonNegativeInteger(value);
+    }
+
+    public int getMaxForecastAgents() { return maxForecastAgents; }
+    @DataBoundSetter public void setMaxForecastAgents(int maxForecastAgents) { this.maxForecastAgents = maxForecastAgents; save(); }
+
+    public FormValidation doCheckMaxForecastAgents(@QueryParameter String value) {
+        return FormValidation.validateNonNegativeInteger(value);
+    }
+
+    public int getForecastHorizon() { return forecastHorizon; }
+    @DataBoundSetter public void setForecastHorizon(int forecastHorizon) { this.forecastHorizon = forecastHorizon; save(); }
+
+    public FormValidation doCheckForecastHorizon(@QueryParameter String value) {
+        return FormValidation.validatePositiveInteger(value);
+    }
+
+    public int getMaxAgents() { return maxAgents; }
+    @DataBoundSetter public void setMaxAgents(int maxAgents) { this.maxAgents = maxAgents; save(); }
+
+    public FormValidation doCheckMaxAgents(@QueryParameter String value) {
+        return FormValidation.validateNonNegativeInteger(value);
+    }
+
+    public int getMaxAgentsPerLabel() { return maxAgentsPerLabel; }
+    @DataBoundSetter public void setMaxAgentsPerLabel(int maxAgentsPerLabel) { this.maxAgentsPerLabel = maxAgentsPerLabel; save(); }
+
+    public FormValidation doCheckMaxAgentsPerLabel(@QueryParameter String value) {
+        return FormValidation.validateNonNegativeInteger(value);
+    }
+
+    public int getMaxInFlight() { return maxInFlight; }
+    @DataBoundSetter public void setMaxInFlight(int maxInFlight) { this.maxInFlight = maxInFlight; save(); }
+
+    public FormValidation doCheckMaxInFlight(@QueryParameter String value) {
+        return FormValidation.validateNonNegativeInteger(value);
+    }
+
+    public int getMaxInFlightPerLabel() { return maxInFlightPerLabel; }
+    @DataBoundSetter public void setMaxInFlightPerLabel(int maxInFlightPerLabel) { this.maxInFlightPerLabel = maxInFlightPerLabel; save(); }
+
+    public FormValidation doCheckMaxInFlightPerLabel(@QueryParameter String value) {
+        return FormValidation.validateNonNegativeInteger(value);
+    }
+
+    public int getLaunchesPerMinute() { return launchesPerMinute; }
+    @DataBoundSetter public void setLaunchesPerMinute(int launchesPerMinute) { this.launchesPerMinute = launchesPerMinute; save(); }
+
+    public FormValidation doCheckLaunchesPerMinute(@QueryParameter String value) {
+        return FormValidation.validateNonNegativeInteger(value);
+    }
+
+    public int getBreakerThreshold() { return breakerThreshold; }
+    @DataBoundSetter public void setBreakerThreshold(int breakerThreshold) { this.breakerThreshold = breakerThreshold; save(); }
+
+    public FormValidation doCheckBreakerThreshold(@QueryParameter String value) {
+        return FormValidation.validateNonNegativeInteger(value);
+    }
+
+    public int getBreakerBackoff() { return breakerBackoff; }
+    @DataBoundSetter public void setBreakerBackoff(int breakerBackoff) { this.breakerBackoff = breakerBackoff; save(); }
+
+    public FormValidation doCheckBreakerBackoff(@QueryParameter String value) {
+        return FormValidation.validatePositiveInteger(value);
+    }
+
+    public String getLabelIdleTimeouts() { return labelIdleTimeouts; }
+    @DataBoundSetter public void setLabelIdleTimeouts(String labelIdleTimeouts) {
+        this.labelIdleTimeouts = labelIdleTimeouts;
+        save();
+    }
+
+    public FormValidation doCheckLabelIdleTimeouts(@QueryParameter String value) {
+        try {
+            parseIdleTimeouts(value);
+        } catch (IllegalArgumentException e) {
+            return FormValidation.error(e.getMessage());
+        }
+        return FormValidation.ok();
+    }
+
+    public List<AgentTemplate> getTemplates() {
+        return templates == null ? Collections.emptyList() : Collections.unmodifiableList(templates);
+    }
+    @DataBoundSetter public void setTemplates(List<AgentTemplate> templates) {
+        this.templates = templates == null ? new ArrayList<>() : new ArrayList<>(templates);
+        save();
+    }
+
+    /**
+     * @return the idle timeout in minutes for agents of the given label
+     */
+    public int getIdleTimeout(Label label) {
+        return snapshot().getIdleTimeout(label);
+    }
+
+    /**
+     * @return the number of idle agents of the given label that are kept when their idle timeout is reached
+     */
+    public int getMinIdleAgents(Label label) {
+        return snapshot().getMinIdleAgents(label);
+    }
+
+    /**
+     * Parses one {@code label=minutes[,minIdleAgents]} override per line.
+     */
+    static Map<String, IdleTimeout> parseIdleTimeouts(String value) {
+        if (StringUtils.isBlank(value)) {
+            return Collections.emptyMap();
+        }
+        Map<String, IdleTimeout> timeouts = new HashMap<>();
+        for (String line : value.split("\\r?\\n")) {
+            line = line.trim();
+            if (line.isEmpty()) {
+                continue;
+            }
+            String[] entry = line.split("=", 2);
+            if (entry.length != 2 || entry[0].trim().isEmpty()) {
+                throw new IllegalArgumentException("Expected 'label=minutes[,minIdleAgents]' but got '" + line + "'.");
+            }
+            String[] values = entry[1].split(",", 2);
+            try {
+                int minutes = Integer.parseInt(values[0].trim());
+                int minIdle = values.length > 1 ? Integer.parseInt(values[1].trim()) : -1;
+                if (minutes <= 0 || (values.length > 1 && minIdle < 0)) {
+                    throw new IllegalArgumentException("Invalid idle timeout '" + line + "'.");
+                }
+                timeouts.put(entry[0].trim(), new IdleTimeout(minutes, minIdle));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid idle timeout '" + line + "'.", e);
+            }
+        }
+        return timeouts;
+    }
+
+    static final class IdleTimeout {
+        final int minutes, minIdleAgents;
+
+        IdleTimeout(int minutes, int minIdleAgents) {
+            this.minutes = minutes;
+            this.minIdleAgents = minIdleAgents;
+        }
+    }
+
+    /**
+     * Immutable view of the configuration, published after every change.
+     */
+    public static final class Snapshot {
+        private static final int MAX_RESOLVED_LABELS = 10000;
+
+        private final boolean enabled, batchProvisioning;
+        private final String agentProvisionJob, agentDecomissionJob, agentImage, agentWorkDir, gitRevision, gitUrl, revision;
+        private final int agentExecutors, maxAgentsPerTick, launchTimeout, launchRetries, batchWindow, idleTimeout, minIdleAgents;
+        private final int maxForecastAgents, forecastHorizon;
+        private final int maxAgents, maxAgentsPerLabel, maxInFlight, maxInFlightPerLabel, launchesPerMinute;
+        private final int breakerThreshold, breakerBackoff;
+        private final Map<String, IdleTimeout> idleTimeouts;
+        private final TemplateMatcher<AgentTemplate> templates;
+        private final ConcurrentMap<String, AgentTemplate.Resolved> resolved = new ConcurrentHashMap<>();
+
+        Snapshot(JobNodesOnDemandConfiguration config) {
+            this.enabled = config.enabled;
+            this.agentProvisionJob = config.agentProvisionJob;
+            this.agentDecomissionJob = config.agentDecomissionJob;
+            this.agentImage = config.agentImage;
+            this.agentWorkDir = config.agentWorkDir;
+            this.gitRevision = config.gitRevision;
+            this.gitUrl = config.gitUrl;
+            this.revision = config.revision;
+            this.agentExecutors = config.agentExecutors;
+            this.maxAgentsPerTick = config.maxAgentsPerTick;
+            this.launchTimeout = config.launchTimeout;
+            this.launchRetries = config.launchRetries;
+            this.batchProvisioning = config.batchProvisioning;
+            this.batchWindow = config.batchWindow;
+            this.idleTimeout = config.idleTimeout;
+            this.minIdleAgents = config.minIdleAgents;
+            this.maxForecastAgents = config.maxForecastAgents;
+            this.forecastHorizon = config.forecastHorizon;
+            this.maxAgents = config.maxAgents;
+            this.maxAgentsPerLabel = config.maxAgentsPerLabel;
+            this.maxInFlight = config.maxInFlight;
+            this.maxInFlightPerLabel = config.maxInFlightPerLabel;
+            this.launchesPerMinute = config.launchesPerMinute;
+            this.breakerThreshold = config.breakerThreshold;
+            this.breakerBackoff = config.breakerBackoff;
+            Map<String, IdleTimeout> timeouts;
+            try {
+                timeouts = parseIdleTimeouts(config.labelIdleTimeouts);
+            } catch (IllegalArgumentException e) {
+                timeouts = Collections.emptyMap();
+            }
+            this.idleTimeouts = timeouts;
+            this.templates = new TemplateMatcher<>(config.getTemplates(), AgentTemplate::getLabelPattern);
+        }
+
+        public boolean isEnabled() { return enabled; }
+        public String getAgentProvisionJob() { return agentProvisionJob; }
+        public String getAgentDecomissionJob() { return agentDecomissionJob; }
+        public String getAgentImage() { return agentImage; }
+        public String getAgentWorkDir() { return agentWorkDir; }
+        public String getGitRevision() { return gitRevision; }
+        public String getGitUrl() { return gitUrl; }
+        public String getRevision() { return revision; }
+        public int getAgentExecutors() { return agentExecutors; }
+        public int getMaxAgentsPerTick() { return maxAgentsPerTick; }
+        public int getLaunchTimeout() { return launchTimeout; }
+        public int getLaunchRetries() { return launchRetries; }
+        public boolean isBatchProvisioning() { return batchProvisioning; }
+        public int getBatchWindow() { return batchWindow; }
+        public int getMaxForecastAgents() { return maxForecastAgents; }
+        public int getForecastHorizon() { return forecastHorizon; }
+        /** @return the maximum number of agents of all labels or 0 for no limit */
+        public int getMaxAgents() { return maxAgents; }
+        /** @return the maximum number of agents of all labels that are not online yet or 0 for no limit */
+        public int getMaxInFlight() { return maxInFlight; }
+        /** @return the agents launched per minute or 0 for no limit */
+        public int getLaunchesPerMinute() { return launchesPerMinute; }
+        /** @return the launch failures in a row that open the circuit breaker of a label or 0 to disable it */
+        public int getBreakerThreshold() { return breakerThreshold; }
+        /** @return the seconds the circuit breaker stays open the first time */
+        public int getBreakerBackoff() { return breakerBackoff; }
+
+        public String toAgentImage(Label label) {
+            return resolve(label).getAgentImage();
+        }
+
+        public int getIdleTimeout(Label label) {
+            return resolve(label).getIdleTimeout();
+        }
+
+        public int getMinIdleAgents(Label label) {
+            return resolve(label).getMinIdleAgents();
+        }
+
+        /**
+         * Resolves the agent settings of the label from the first template matching its
+         * {@link NormalizedLabel normalized} key or else one of its atoms, and the global
+         * configuration. The result is cached per label for the lifetime of the snapshot.
+         */
+        public AgentTemplate.Resolved resolve(Label label) {
+            final String name = label.getExpression();
+            final AgentTemplate.Resolved cached = resolved.get(name);
+            if (cached != null) {
+                return cached;
+            }
+            if (resolved.size() >= MAX_RESOLVED_LABELS) {
+                resolved.clear();
+            }
+            return resolved.computeIfAbsent(name, k -> resolveTemplate(NormalizedLabel.of(label)));
+        }
+
+        private AgentTemplate.Resolved resolveTemplate(NormalizedLabel normalized) {
+            final String label = normalized.getKey();
+            final AgentTemplate template = templates.match(label, normalized.getAtoms());
+            final IdleTimeout timeout = idleTimeouts.get(label);
+
+            String image = agentImage, workDir = agentWorkDir, provisionJob = agentProvisionJob, decomissionJob = agentDecomissionJob;
+            int executors = agentExecutors, idle = idleTimeout, maxLabelAgents = maxAgentsPerLabel, maxLabelInFlight = maxInFlightPerLabel;
+            if (template != null) {
+                image = StringUtils.defaultString(template.getAgentImage(), image);
+                workDir = StringUtils.defaultString(template.getAgentWorkDir(), workDir);
+                provisionJob = StringUtils.defaultString(template.getAgentProvisionJob(), provisionJob);
+                decomissionJob = StringUtils.defaultString(template.getAgentDecomissionJob(), decomissionJob);
+                executors = template.getAgentExecutors() > 0 ? template.getAgentExecutors() : executors;
+                idle = template.getIdleTimeout() > 0 ? template.getIdleTimeout() : idle;
+                maxLabelAgents = template.getMaxAgents() > 0 ? template.getMaxAgents() : maxLabelAgents;
+                maxLabelInFlight = template.getMaxInFlight() > 0 ? template.getMaxInFlight() : maxLabelInFlight;
+            }
+            if (timeout != null) {
+                idle = timeout.minutes;
+            }
+            return new AgentTemplate.Resolved(label,
+                    image == null ? null : image.replace("{label}", String.join("-", normalized.getAtoms())),
+                    workDir, provisionJob, decomissionJob,
+                    Math.max(1, executors), idle,
+                    timeout == null || timeout.minIdleAgents < 0 ? minIdleAgents : timeout.minIdleAgents,
+                    maxLabelAgents, maxLabelInFlight,
+                    template == null ? null : template.getLaunchBackend());
+        }
+    }
 }
@@ -2,27 +2,36 @@ package io.jenkins.nodes;
 
 import static hudson.slaves.NodeProvisioner.StrategyDecision.CONSULT_REMAINING_STRATEGIES;
 import static hudson.slaves.NodeProvisioner.StrategyDecision.PROVISIONING_COMPLETED;
+import static java.util.logging.Level.FINE;
 import static java.util.logging.Level.INFO;
 
-import java.util.HashSet;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
 import javax.annotation.Nonnull;
 
+import org.fr123k.jenkins.plugins.agents.AgentIndex;
+import org.fr123k.jenkins.plugins.agents.AgentLaunchTracker;
 import org.fr123k.jenkins.plugins.agents.AgentsJob;
+import org.fr123k.jenkins.plugins.agents.DemandForecast;
+import org.fr123k.jenkins.plugins.agents.LabelCircuitBreaker;
+import org.fr123k.jenkins.plugins.agents.ProvisioningLimiter;
+import org.fr123k.jenkins.plugins.agents.ProvisioningMetrics;
 
 import hudson.Extension;
 import hudson.model.Label;
 import hudson.model.LoadStatistics;
-import hudson.model.Node;
 import hudson.model.Queue;
 import hudson.model.queue.QueueListener;
 import hudson.slaves.NodeProvisioner;
 import hudson.slaves.NodeProvisioner.Strategy;
 import hudson.slaves.NodeProvisioner.StrategyDecision;
 import jenkins.model.Jenkins;
+import jenkins.util.Timer;
 
 /**
  * Based on https://github.com/jenkinsci/one-shot-executor-plugin/blob/master/src/main/java/org/jenkinsci/plugins/oneshot/OneShotProvisionerStrategy.java
@@ -40,16 +49,16 @@ public class JobNodesOnDemandStrategy extends Strategy {
         if (Jenkins.get().isQuietingDown()) {
             return CONSULT_REMAINING_STRATEGIES;
         }
-        LOGGER.log(INFO, "apply JobNodesOnDemandStrategy");
-
-        applyFoCloud(state);
-        return CONSULT_REMAINING_STRATEGIES;
+        return applyFoCloud(state, JobNodesOnDemandConfiguration.current());
     }
 
-    private StrategyDecision applyFoCloud(@Nonnull NodeProvisioner.StrategyState state) {
-        JobNodesOnDemandConfiguration config = JobNodesOnDemandConfiguration.get();
+    /**
+     * Provisions the agents of the label the capacity on the way does not cover. The queued items
+     * are left to the remaining strategies unless the agents provisioned here cover all of them.
+     */
+    StrategyDecision applyFoCloud(@Nonnull NodeProvisioner.StrategyState state, JobNodesOnDemandConfiguration.Snapshot config) {
         if (!config.isEnabled()) {
-            LOGGER.log(INFO, "Skip dynamic agent creation becuae it's not enabled.");
+            LOGGER.log(FINE, "Skip dynamic agent creation because it's not enabled.");
             return CONSULT_REMAINING_STRATEGIES;
         }
 
@@ -58,74 +67,178 @@ public class JobNodesOnDemandStrategy extends Strategy {
             return CONSULT_REMAINING_STRATEGIES;
         }
 
-        
+        final NormalizedLabel normalized = NormalizedLabel.of(label);
+        if (!normalized.isProvisionable()) {
+            LOGGER.log(FINE, "No agent satisfies label {0} for sure, leave it to the other strategies", label);
+            return CONSULT_REMAINING_STRATEGIES;
+        }
+
+        // equivalent expressions share their agents, metrics and limits
+        final String key = normalized.getKey();
+        final AgentTemplate.Resolved template = config.resolve(label);
+        final int executorsPerAgent = template.getAgentExecutors();
+        final int unplannedCapacity = unplannedCapacity(key, executorsPerAgent);
+
+        LoadStatistics.LoadStatisticsSnapshot snapshot = state.getSnapshot();
+        int availableCapacity = availableCapacity(state, unplannedCapacity);
+
+        int currentDemand = snapshot.getQueueLength();
+        final int forecastDemand = forecastDemand(config,
+                DemandForecast.get().forecast(key, config.getForecastHorizon()), executorsPerAgent);
+        if (LOGGER.isLoggable(FINE)) {
+            LOGGER.log(FINE, "Label {0}: available executors={1}, connecting={2}, planned={3}, unplanned={4}, demand={5}, forecast={6}",
+                    new Object[]{label, snapshot.getAvailableExecutors(), snapshot.getConnectingExecutors(),
+                        state.getPlannedCapacitySnapshot(), unplannedCapacity, currentDemand, forecastDemand});
+        }
+
+        // agents beyond the ones needed for the queued items are provisioned ahead of demand
+        final int agentsForQueue = agentsToProvision(config, executorsPerAgent, availableCapacity, currentDemand);
+        final int agentsToProvision = agentsToProvision(config, executorsPerAgent, availableCapacity, currentDemand + forecastDemand);
+        final ProvisioningLimiter limiter = ProvisioningLimiter.get();
+        if (agentsToProvision == 0) {
+            limiter.satisfied(key);
+            return CONSULT_REMAINING_STRATEGIES;
+        }
+
+        final LabelCircuitBreaker breaker = LabelCircuitBreaker.get();
+        final int allowed = breaker.allow(key, agentsToProvision);
+        if (allowed == 0) {
+            LOGGER.log(FINE, "Circuit breaker of label {0} is {1}", new Object[]{label, breaker.getState(key)});
+            return CONSULT_REMAINING_STRATEGIES;
+        }
 
-        // //TODO add support for multiple agents for the same label
-        // if (getLabels().contains(label.toString())) {
-        //     LOGGER.log(INFO, "Skip agent creation label {0} already has agents.", new Object[]{label});
-        //     return CONSULT_REMAINING_STRATEGIES;
-        // }
+        final int granted = limiter.acquire(config, template, key, allowed);
+        if (granted < agentsToProvision) {
+            LOGGER.log(FINE, "Label {0} is limited to {1} of {2} agent(s)", new Object[]{label, granted, agentsToProvision});
+        }
 
-        for (Node node : label.getNodes()) {
-            if (node.isAcceptingTasks()) {
-                LOGGER.log(INFO, "Skip agent creation label {0} already has agents.", new Object[]{label});
-                return CONSULT_REMAINING_STRATEGIES;
+        final AgentsJob agentsJob = new AgentsJob();
+        final List<NodeProvisioner.PlannedNode> plannedNodes = new ArrayList<>(granted);
+        for (int i = 0; i < granted; i++) {
+            NodeProvisioner.PlannedNode plannedNode = agentsJob.provision(config, label, executorsPerAgent, i >= agentsForQueue);
+            if (plannedNode == null) {
+                break;
             }
+            limiter.track(key, plannedNode.future);
+            plannedNodes.add(plannedNode);
+            availableCapacity += plannedNode.numExecutors;
+        }
+        limiter.unused(key, granted - plannedNodes.size());
+        if (plannedNodes.isEmpty()) {
+            breaker.notProvisioned(key);
+            return CONSULT_REMAINING_STRATEGIES;
         }
 
-        LoadStatistics.LoadStatisticsSnapshot snapshot = state.getSnapshot();
-        LOGGER.log(INFO, "Available executors={0}, connecting={1}, planned={2}",
-        new Object[]{snapshot.getAvailableExecutors(), snapshot.getConnectingExecutors(), state.getPlannedCapacitySnapshot()});
-        int availableCapacity =
-        snapshot.getAvailableExecutors()
-        + snapshot.getConnectingExecutors()
-        + state.getPlannedCapacitySnapshot();
-        
-        int currentDemand = snapshot.getQueueLength();
-        LOGGER.log(INFO, "Available capacity={0}, currentDemand={1}",
-        new Object[]{availableCapacity, currentDemand});
-        
+        state.recordPendingLaunches(plannedNodes);
+        LOGGER.log(INFO, "Provisioning {0} agent(s) for label {1}, available capacity={2}, demand={3}, forecast={4}",
+                new Object[]{plannedNodes.size(), label, availableCapacity, currentDemand, forecastDemand});
 
-        NodeProvisioner.PlannedNode plannedNode = new AgentsJob().provision(label, 2);
+        return availableCapacity >= currentDemand ? PROVISIONING_COMPLETED : CONSULT_REMAINING_STRATEGIES;
+    }
 
-        state.recordPendingLaunches(plannedNode);
-        availableCapacity++;
-        LOGGER.log(INFO, "After provisioning, available capacity={0}, currentDemand={1}",
-                new Object[]{availableCapacity, currentDemand});
+    /**
+     * Executors that are available or on the way: idle, connecting, planned by the strategies of this
+     * review and planned without a planned node.
+     */
+    static int availableCapacity(NodeProvisioner.StrategyState state, int unplannedCapacity) {
+        final LoadStatistics.LoadStatisticsSnapshot snapshot = state.getSnapshot();
+        return snapshot.getAvailableExecutors()
+                + snapshot.getConnectingExecutors()
+                + state.getPlannedCapacitySnapshot()
+                + state.getAdditionalPlannedCapacity()
+                + unplannedCapacity;
+    }
 
-        if (availableCapacity >= currentDemand) {
-            LOGGER.log(INFO, "Provisioning completed");
-            return PROVISIONING_COMPLETED;
+    /**
+     * Executors of the agents that are on the way without a planned node, e.g. after a restart or a lost launch.
+     */
+    static int unplannedCapacity(String label, int executorsPerAgent) {
+        final int unplannedAgents = Math.max(0,
+                AgentIndex.get().count(label, AgentIndex.State.PROVISIONING)
+                - AgentLaunchTracker.get().getPendingLaunches(label));
+        return unplannedAgents * executorsPerAgent;
+    }
+
+    /**
+     * Executors the label is expected to need within the forecast horizon, limited to the executors
+     * of the configured maximum of agents provisioned ahead of demand.
+     *
+     * @param forecast the executors forecast for the label within the horizon
+     */
+    static int forecastDemand(JobNodesOnDemandConfiguration.Snapshot config, int forecast, int executorsPerAgent) {
+        if (config.getMaxForecastAgents() <= 0) {
+            return 0;
         }
-        LOGGER.log(INFO, "Provisioning not complete, consulting remaining strategies");
-        return CONSULT_REMAINING_STRATEGIES;
+        return Math.min(forecast, config.getMaxForecastAgents() * executorsPerAgent);
     }
 
-    private static Set<String> getLabels() {
-        List<Node> nodes = Jenkins.get().getNodes();
-        Set<String> labels = new HashSet<>(nodes.size());
-        for(Node node : nodes) {
-            labels.add(node.getLabelString());
+    /**
+     * Number of agents with {@code executorsPerAgent} executors needed to cover the demand, at most
+     * the configured maximum per tick.
+     */
+    static int agentsToProvision(JobNodesOnDemandConfiguration.Snapshot config, int executorsPerAgent,
+            int availableCapacity, int currentDemand) {
+        if (availableCapacity >= currentDemand) {
+            return 0;
         }
-        return labels;
+        final int shortfall = currentDemand - availableCapacity;
+        return Math.min((shortfall + executorsPerAgent - 1) / executorsPerAgent, Math.max(1, config.getMaxAgentsPerTick()));
     }
 
     /**
-     * Ping the nodeProvisioner as a new task enters the queue, so it can provision a DockerSlave without delay.
+     * Ping the nodeProvisioner as a new task enters the queue, so it can provision an agent without delay.
+     * The first item of a label wakes its provisioner up at once, all further items within the window
+     * are coalesced into a single review at the end of the window.
      */
     @Extension
     public static class FastProvisionning extends QueueListener {
 
+        static final long WINDOW_MILLIS = Long.getLong(FastProvisionning.class.getName() + ".windowMillis", 500);
+
+        private final ConcurrentMap<NodeProvisioner, Window> windows = new ConcurrentHashMap<>();
+
         @Override
         public void onEnterBuildable(Queue.BuildableItem item) {
-            final Jenkins jenkins = Jenkins.get();
             final Label label = item.getAssignedLabel();
             final NodeProvisioner provisioner = (label == null
-                    ? jenkins.unlabeledNodeProvisioner
+                    ? Jenkins.get().unlabeledNodeProvisioner
                     : label.nodeProvisioner);
 
-            LOGGER.log(INFO, "Check provisioner {0} for label {1}", new Object[]{provisioner.getClass().getName(), label});
-            provisioner.suggestReviewNow();
+            // nothing is recorded for labels while the agents are not provisioned on demand
+            if (label != null && JobNodesOnDemandConfiguration.current().isEnabled()) {
+                final String key = NormalizedLabel.keyOf(label);
+                ProvisioningMetrics.get().buildable(key);
+                DemandForecast.get().arrived(key);
+            }
+            suggestReview(provisioner);
+        }
+
+        void suggestReview(final NodeProvisioner provisioner) {
+            final Window opened = new Window();
+            final Window window = windows.compute(provisioner, (p, w) -> {
+                if (w == null) {
+                    return opened;
+                }
+                w.pending = true;
+                return w;
+            });
+            if (window == opened) {
+                provisioner.suggestReviewNow();
+                Timer.get().schedule(() -> close(provisioner), WINDOW_MILLIS, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        private void close(final NodeProvisioner provisioner) {
+            final Window window = windows.remove(provisioner);
+            if (window != null && window.pending) {
+                LOGGER.log(FINE, "Review coalesced buildable items of {0}", provisioner);
+                provisioner.suggestReviewNow();
+            }
+        }
+
+        private static final class Window {
+            /** set once more items entered the queue after the window was opened */
+            volatile boolean pending;
         }
     }
 }
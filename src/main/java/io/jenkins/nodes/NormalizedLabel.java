@@ -0,0 +1,191 @@
+package io.jenkins.nodes;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import hudson.model.Label;
+import hudson.model.labels.LabelAtom;
+import hudson.model.labels.LabelExpression;
+import hudson.model.labels.LabelVisitor;
+
+/**
+ * A label expression broken down into its atoms.
+ *
+ * <p>
+ * An agent that has all atoms of an expression built only from atoms, {@code &&} and parentheses
+ * satisfies the expression. Such expressions are normalized to their sorted atoms, so
+ * {@code golang && linux} and {@code linux && golang} share the key {@code golang && linux} for the
+ * index, the metrics and the limits, and are provisioned as agents labeled {@code golang linux}.
+ * These agents serve {@code golang} and {@code linux} as well, the provisioner of such a label counts
+ * their idle executors as available capacity.
+ *
+ * <p>
+ * Expressions with {@code ||} keep their expression as key and are provisioned with the atoms of
+ * their first alternative, e.g. {@code windows || linux} with {@code windows}. Agents can't be
+ * provisioned for expressions with a negation or an implication, no set of atoms is known to
+ * satisfy them.
+ */
+public final class NormalizedLabel {
+
+    private static final int MAX_CACHED_LABELS = 10000;
+    /** Alternatives beyond which an expression is not broken down, {@code &&} of disjunctions multiplies them. */
+    private static final int MAX_ALTERNATIVES = 64;
+
+    private static final ConcurrentMap<String, NormalizedLabel> CACHE = new ConcurrentHashMap<>();
+
+    private final String key, labelString, name;
+    private final List<String> atoms;
+    private final boolean provisionable;
+
+    private NormalizedLabel(String key, String labelString, String name, List<String> atoms, boolean provisionable) {
+        this.key = key;
+        this.labelString = labelString;
+        this.name = name;
+        this.atoms = atoms;
+        this.provisionable = provisionable;
+    }
+
+    /**
+     * @return the normalized label, cached by expression
+     */
+    public static NormalizedLabel of(Label label) {
+        final String expression = label.getExpression();
+        final NormalizedLabel cached = CACHE.get(expression);
+        if (cached != null) {
+            return cached;
+        }
+        if (CACHE.size() >= MAX_CACHED_LABELS) {
+            CACHE.clear();
+        }
+        return CACHE.computeIfAbsent(expression, k -> normalize(label));
+    }
+
+    /**
+     * @return the key of the label expression, see {@link #of(Label)}
+     */
+    public static String keyOf(Label label) {
+        return of(label).getKey();
+    }
+
+    private static NormalizedLabel normalize(Label label) {
+        final String expression = label.getExpression();
+        final List<Set<String>> alternatives = label.accept(new Alternatives(), null);
+        if (alternatives == null || alternatives.isEmpty()) {
+            return new NormalizedLabel(expression, expression, toName(expression),
+                    Collections.singletonList(expression), false);
+        }
+        final List<String> sorted = Collections.unmodifiableList(new ArrayList<>(alternatives.get(0)));
+        final List<String> escaped = new ArrayList<>(sorted.size());
+        for (String atom : sorted) {
+            escaped.add(LabelAtom.escape(atom));
+        }
+        final String key = alternatives.size() == 1 ? String.join(" && ", escaped) : expression;
+        return new NormalizedLabel(key, String.join(" ", escaped), toName(String.join("-", sorted)), sorted, true);
+    }
+
+    /**
+     * Replaces everything but letters, digits, {@code .}, {@code _} and {@code -} so the value can be
+     * used in node names and image tags.
+     */
+    static String toName(String value) {
+        final StringBuilder name = new StringBuilder(value.length());
+        boolean replaced = false;
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            if (Character.isLetterOrDigit(c) || c == '.' || c == '_' || c == '-') {
+                name.append(c);
+                replaced = false;
+            } else if (!replaced && name.length() > 0) {
+                name.append('_');
+                replaced = true;
+            }
+        }
+        while (name.length() > 0 && name.charAt(name.length() - 1) == '_') {
+            name.setLength(name.length() - 1);
+        }
+        return name.length() == 0 ? "agent" : name.toString();
+    }
+
+    /** @return the key agents of the label are indexed and counted by, e.g. {@code golang && linux} */
+    public String getKey() { return key; }
+    /** @return the label string of the agents, e.g. {@code golang linux} */
+    public String getLabelString() { return labelString; }
+    /** @return the label as part of node names and images, e.g. {@code golang-linux} */
+    public String getName() { return name; }
+    /** @return the sorted atoms of the label, of its first alternative if it has several */
+    public List<String> getAtoms() { return atoms; }
+    /** @return whether an agent with the {@link #getAtoms() atoms} satisfies the label */
+    public boolean isProvisionable() { return provisionable; }
+
+    @Override
+    public String toString() {
+        return key;
+    }
+
+    /**
+     * Breaks the expression down into the alternative sets of atoms, an agent with all atoms of one of
+     * them satisfies the expression. Returns {@code null} if the expression can't be broken down.
+     */
+    private static final class Alternatives extends LabelVisitor<List<Set<String>>, Void> {
+        @Override
+        public List<Set<String>> onAtom(LabelAtom a, Void param) {
+            final List<Set<String>> alternatives = new ArrayList<>(1);
+            alternatives.add(new TreeSet<>(Collections.singleton(a.getName())));
+            return alternatives;
+        }
+
+        @Override
+        public List<Set<String>> onParen(LabelExpression.Paren p, Void param) {
+            return p.base.accept(this, param);
+        }
+
+        @Override
+        public List<Set<String>> onNot(LabelExpression.Not p, Void param) {
+            return null;
+        }
+
+        @Override
+        public List<Set<String>> onAnd(LabelExpression.And p, Void param) {
+            final List<Set<String>> lhs = p.lhs.accept(this, param);
+            final List<Set<String>> rhs = lhs == null ? null : p.rhs.accept(this, param);
+            if (rhs == null || lhs.size() * rhs.size() > MAX_ALTERNATIVES) {
+                return null;
+            }
+            final List<Set<String>> alternatives = new ArrayList<>(lhs.size() * rhs.size());
+            for (Set<String> left : lhs) {
+                for (Set<String> right : rhs) {
+                    final Set<String> atoms = new TreeSet<>(left);
+                    atoms.addAll(right);
+                    alternatives.add(atoms);
+                }
+            }
+            return alternatives;
+        }
+
+        @Override
+        public List<Set<String>> onOr(LabelExpression.Or p, Void param) {
+            final List<Set<String>> lhs = p.lhs.accept(this, param);
+            final List<Set<String>> rhs = lhs == null ? null : p.rhs.accept(this, param);
+            if (rhs == null || lhs.size() + rhs.size() > MAX_ALTERNATIVES) {
+                return null;
+            }
+            lhs.addAll(rhs);
+            return lhs;
+        }
+
+        @Override
+        public List<Set<String>> onIff(LabelExpression.Iff p, Void param) {
+            return null;
+        }
+
+        @Override
+        public List<Set<String>> onImplies(LabelExpression.Implies p, Void param) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package io.jenkins.nodes;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.regex.Pattern;
+
+import hudson.Util;
+
+/**
+ * Resolves a label to the first item of an ordered list whose label pattern matches.
+ *
+ * <p>
+ * Patterns are compiled once. A pattern without wildcards is an exact match kept in a
+ * hash map, a pattern with a single trailing {@code *} is a prefix kept in a trie and
+ * every other pattern with {@code *} or {@code ?} wildcards is a regular expression.
+ * Only the regular expressions are scanned, so resolving a label costs time proportional
+ * to its length for the usual {@code golang-*} or {@code gpu-less-heavy} patterns. Items
+ * without a pattern never match.
+ */
+final class TemplateMatcher<T> {
+
+    private final List<T> items;
+    private final Map<String, Integer> exact = new HashMap<>();
+    private final PrefixNode prefixes = new PrefixNode();
+    private final List<Pattern> globs = new ArrayList<>();
+    private final List<Integer> globIndexes = new ArrayList<>();
+
+    TemplateMatcher(List<T> items, Function<T, String> pattern) {
+        this.items = new ArrayList<>(items);
+        for (int i = 0; i < this.items.size(); i++) {
+            final String p = Util.fixEmptyAndTrim(pattern.apply(this.items.get(i)));
+            if (p == null) {
+                // rejected by the form validation, but may come from a hand edited configuration
+                continue;
+            }
+            final int wildcard = indexOfWildcard(p);
+            if (wildcard < 0) {
+                exact.putIfAbsent(p, i);
+            } else if (wildcard == p.length() - 1 && p.charAt(wildcard) == '*') {
+                prefixes.insert(p.substring(0, wildcard), i);
+            } else {
+                globs.add(toRegex(p));
+                globIndexes.add(i);
+            }
+        }
+    }
+
+    /**
+     * @return the first item matching the label or {@code null} if none does
+     */
+    T match(String label) {
+        final int best = indexOf(label, Integer.MAX_VALUE);
+        return best == Integer.MAX_VALUE ? null : items.get(best);
+    }
+
+    /**
+     * @return the first item matching the label, otherwise the first item matching any of the
+     *         alternatives, or {@code null} if none does
+     */
+    T match(String label, Iterable<String> alternatives) {
+        int best = indexOf(label, Integer.MAX_VALUE);
+        if (best == Integer.MAX_VALUE) {
+            for (String alternative : alternatives) {
+                best = Math.min(best, indexOf(alternative, best));
+            }
+        }
+        return best == Integer.MAX_VALUE ? null : items.get(best);
+    }
+
+    /**
+     * @return the index of the first item matching the label if lower than {@code best}, otherwise {@code best}
+     */
+    private int indexOf(String label, int best) {
+        final Integer exactIndex = exact.get(label);
+        if (exactIndex != null) {
+            best = Math.min(best, exactIndex);
+        }
+        best = Math.min(best, prefixes.lookup(label));
+        for (int i = 0; i < globs.size() && globIndexes.get(i) < best; i++) {
+            if (globs.get(i).matcher(label).matches()) {
+                best = globIndexes.get(i);
+            }
+        }
+        return best;
+    }
+
+    private static int indexOfWildcard(String pattern) {
+        for (int i = 0; i < pattern.length(); i++) {
+            final char c = pattern.charAt(i);
+            if (c == '*' || c == '?') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static Pattern toRegex(String glob) {
+        final StringBuilder regex = new StringBuilder();
+        int literal = 0;
+        for (int i = 0; i < glob.length(); i++) {
+            final char c = glob.charAt(i);
+            if (c == '*' || c == '?') {
+                if (literal < i) {
+                    regex.append(Pattern.quote(glob.substring(literal, i)));
+                }
+                regex.append(c == '*' ? ".*" : ".");
+                literal = i + 1;
+            }
+        }
+        if (literal < glob.length()) {
+            regex.append(Pattern.quote(glob.substring(literal)));
+        }
+        return Pattern.compile(regex.toString());
+    }
+
+    private static final class PrefixNode {
+        private final Map<Character, PrefixNode> children = new HashMap<>();
+        private int index = Integer.MAX_VALUE;
+
+        void insert(String prefix, int i) {
+            PrefixNode node = this;
+            for (int c = 0; c < prefix.length(); c++) {
+                node = node.children.computeIfAbsent(prefix.charAt(c), k -> new PrefixNode());
+            }
+            node.index = Math.min(node.index, i);
+        }
+
+        /** @return the lowest index of all prefixes of the label */
+        int lookup(String label) {
+            PrefixNode node = this;
+            int best = node.index;
+            for (int c = 0; c < label.length(); c++) {
+                node = node.children.get(label.charAt(c));
+                if (node == null) {
+                    break;
+                }
+                best = Math.min(best, node.index);
+            }
+            return best;
+        }
+    }
+}
@@ -0,0 +1,229 @@
+package org.fr123k.jenkins.plugins.agents;
+
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+import hudson.Extension;
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+import hudson.model.Computer;
+import hudson.model.Node;
+import hudson.model.Slave;
+import hudson.model.TaskListener;
+import hudson.slaves.ComputerListener;
+import hudson.slaves.OfflineCause;
+import jenkins.model.Jenkins;
+import jenkins.model.NodeListener;
+
+/**
+ * Index of the on demand agents by label and {@link State}, kept up to date from node,
+ * computer and executor events so the provisioning decisions never scan the node list.
+ *
+ * <p>
+ * Agents are indexed by the label they were provisioned for, which is the label of their
+ * {@link JobRetentionStrategy}.
+ */
+public final class AgentIndex {
+
+    public enum State {
+        /** The agent is added but not connected yet. */
+        PROVISIONING,
+        /** The agent is online and all its executors are idle. */
+        IDLE,
+        /** The agent is online and runs at least one task. */
+        BUSY,
+        /** The agent is taken offline and about to be removed. */
+        DRAINING,
+        /** The agent was online and lost its connection, it is no capacity on the way. */
+        DISCONNECTED
+    }
+
+    private static final AgentIndex INSTANCE = new AgentIndex();
+
+    private final ConcurrentMap<String, Agent> agents = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, LabelAgents> labels = new ConcurrentHashMap<>();
+    private final AtomicIntegerArray totals = new AtomicIntegerArray(State.values().length);
+
+    public static AgentIndex get() {
+        return INSTANCE;
+    }
+
+    /**
+     * @return the label the node was provisioned for or {@code null} if it is not an on demand agent
+     */
+    @CheckForNull
+    public static String labelOf(@CheckForNull Node node) {
+        if (node instanceof Slave && ((Slave) node).getRetentionStrategy() instanceof JobRetentionStrategy) {
+            return ((JobRetentionStrategy) ((Slave) node).getRetentionStrategy()).getLabel();
+        }
+        return null;
+    }
+
+    synchronized void update(String label, String nodeName, State state) {
+        final Agent agent = agents.get(nodeName);
+        if (agent != null) {
+            if (agent.state == state && agent.label.equals(label)) {
+                return;
+            }
+            remove(agent.label, nodeName, agent.state);
+        }
+        agents.put(nodeName, new Agent(label, state));
+        labels.computeIfAbsent(label, k -> new LabelAgents()).agents.get(state).add(nodeName);
+        totals.incrementAndGet(state.ordinal());
+    }
+
+    synchronized void remove(String nodeName) {
+        final Agent agent = agents.remove(nodeName);
+        if (agent != null) {
+            remove(agent.label, nodeName, agent.state);
+        }
+    }
+
+    private void remove(String label, String nodeName, State state) {
+        final LabelAgents labelAgents = labels.get(label);
+        if (labelAgents != null && labelAgents.agents.get(state).remove(nodeName)) {
+            totals.decrementAndGet(state.ordinal());
+            if (labelAgents.isEmpty()) {
+                labels.remove(label);
+            }
+        }
+    }
+
+    /** @return the number of agents of the label in the state */
+    public int count(String label, State state) {
+        final LabelAgents labelAgents = labels.get(label);
+        return labelAgents == null ? 0 : labelAgents.agents.get(state).size();
+    }
+
+    /** @return the number of agents of all labels in the state */
+    public int count(State state) {
+        return totals.get(state.ordinal());
+    }
+
+    /** @return the names of the agents of the label in the state */
+    public Set<String> agents(String label, State state) {
+        final LabelAgents labelAgents = labels.get(label);
+        return labelAgents == null ? Collections.emptySet() : Collections.unmodifiableSet(labelAgents.agents.get(state));
+    }
+
+    /** @return the state of the agent or {@code null} if it is not indexed */
+    @CheckForNull
+    public State state(String nodeName) {
+        final Agent agent = agents.get(nodeName);
+        return agent == null ? null : agent.state;
+    }
+
+    /** @return the labels that have at least one agent */
+    public Set<String> labels() {
+        return Collections.unmodifiableSet(labels.keySet());
+    }
+
+    private static final class Agent {
+        final String label;
+        final State state;
+
+        Agent(String label, State state) {
+            this.label = label;
+            this.state = state;
+        }
+    }
+
+    private static final class LabelAgents {
+        final Map<State, Set<String>> agents = new EnumMap<>(State.class);
+
+        LabelAgents() {
+            for (State state : State.values()) {
+                agents.put(state, ConcurrentHashMap.newKeySet());
+            }
+        }
+
+        boolean isEmpty() {
+            for (Set<String> names : agents.values()) {
+                if (!names.isEmpty()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    static void updateOnline(Computer c) {
+        final String label = labelOf(c.getNode());
+        if (label != null) {
+            get().update(label, c.getName(), c.isIdle() ? State.IDLE : State.BUSY);
+        }
+    }
+
+    /**
+     * Indexes the agents loaded from disk.
+     */
+    @Initializer(after = InitMilestone.JOB_LOADED)
+    public static void indexExistingAgents() {
+        for (Node node : Jenkins.get().getNodes()) {
+            final String label = labelOf(node);
+            if (label != null) {
+                final Computer c = node.toComputer();
+                get().update(label, node.getNodeName(), c != null && c.isOnline()
+                        ? (c.isIdle() ? State.IDLE : State.BUSY)
+                        : State.PROVISIONING);
+            }
+        }
+    }
+
+    @Extension
+    public static class NodeEvents extends NodeListener {
+        @Override
+        protected void onCreated(@Nonnull Node node) {
+            final String label = labelOf(node);
+            if (label != null) {
+                get().update(label, node.getNodeName(), State.PROVISIONING);
+            }
+        }
+
+        @Override
+        protected void onDeleted(@Nonnull Node node) {
+            get().remove(node.getNodeName());
+        }
+    }
+
+    @Extension
+    public static class ComputerEvents extends ComputerListener {
+        @Override
+        public void onOnline(Computer c, TaskListener listener) {
+            if (!c.isTemporarilyOffline()) {
+                updateOnline(c);
+            }
+        }
+
+        @Override
+        public void onOffline(@Nonnull Computer c, @CheckForNull OfflineCause cause) {
+            final String label = labelOf(c.getNode());
+            if (label != null) {
+                get().update(label, c.getName(), c.isTemporarilyOffline() ? State.DRAINING : State.DISCONNECTED);
+            }
+        }
+
+        @Override
+        public void onTemporarilyOffline(Computer c, OfflineCause cause) {
+            final String label = labelOf(c.getNode());
+            if (label != null) {
+                get().update(label, c.getName(), State.DRAINING);
+            }
+        }
+
+        @Override
+        public void onTemporarilyOnline(Computer c) {
+            if (c.isOnline()) {
+                updateOnline(c);
+            }
+        }
+    }
+}
@@ -0,0 +1,366 @@
+package org.fr123k.jenkins.plugins.agents;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+import org.fr123k.jenkins.plugins.agents.AgentLifecycle.State;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import hudson.Extension;
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+import hudson.model.Computer;
+import hudson.model.Label;
+import hudson.model.Node;
+import hudson.model.Slave;
+import hudson.model.TaskListener;
+import hudson.slaves.ComputerListener;
+import io.jenkins.nodes.JobNodesOnDemandConfiguration;
+import jenkins.model.Jenkins;
+import jenkins.model.NodeListener;
+import jenkins.util.Timer;
+
+/**
+ * Journal of the {@link AgentLifecycle} of the on demand agents, so a restarted controller knows
+ * which of the agents loaded from disk are still running.
+ *
+ * <p>
+ * Every state change appends a line to the journal file in the Jenkins home, the file is rewritten
+ * with the current agents only at startup and when the appended lines outgrow the agents. After a
+ * restart the journal is reconciled with the agents in parallel without blocking the startup:
+ * <ul>
+ * <li>agents that are online again are adopted,</li>
+ * <li>agents that were launching or online are not launched again but get {@link #RECONNECT_SECONDS},
+ * or the launch timeout if longer, to reconnect, otherwise they are orphans and decommissioned and
+ * removed,</li>
+ * <li>agents that were only planned are placeholders without a running agent and removed,</li>
+ * <li>agents that were draining or whose decommission was interrupted and agents in the journal
+ * without a node are decommissioned again.</li>
+ * </ul>
+ */
+public final class AgentJournal {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(AgentJournal.class);
+
+    static final long RECONNECT_SECONDS = Long.getLong(AgentJournal.class.getName() + ".reconnectSeconds", 60);
+    /** Appended lines after which the journal is rewritten, if they are more than twice the agents. */
+    static final int COMPACT_LINES = Integer.getInteger(AgentJournal.class.getName() + ".compactLines", 10000);
+
+    private static final AgentJournal INSTANCE = new AgentJournal();
+
+    private final ConcurrentMap<String, Entry> agents = new ConcurrentHashMap<>();
+    /** Journaled agents of the previous run that are not reconciled yet, they are not launched again. */
+    private final ConcurrentMap<String, Entry> recovering = new ConcurrentHashMap<>();
+
+    // guarded by this
+    private Writer writer;
+    private int appended;
+
+    public static AgentJournal get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Appends the state of the agent to the journal unless the agent is already in that state.
+     */
+    synchronized void record(String label, String nodeName, State state) {
+        if (state == State.GONE) {
+            if (agents.remove(nodeName) == null) {
+                return;
+            }
+        } else {
+            final Entry entry = new Entry(label, state);
+            final Entry previous = agents.put(nodeName, entry);
+            if (entry.equals(previous)) {
+                return;
+            }
+        }
+        append(state, nodeName, label);
+    }
+
+    /** @return the last recorded state of the agent or {@code null} if it is gone */
+    @CheckForNull
+    public State state(String nodeName) {
+        final Entry entry = agents.get(nodeName);
+        return entry == null ? null : entry.state;
+    }
+
+    /**
+     * @return whether the agent is of the previous run and not reconciled yet, so it must not be
+     *         launched again
+     */
+    public boolean isRecovering(String nodeName) {
+        return recovering.containsKey(nodeName);
+    }
+
+    private synchronized void append(State state, String nodeName, String label) {
+        final File file = file();
+        if (file == null) {
+            return;
+        }
+        try {
+            if (writer == null) {
+                writer = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8,
+                        StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            }
+            writer.write(state.name() + ' ' + nodeName + ' ' + label + '\n');
+            writer.flush();
+            if (++appended > COMPACT_LINES && appended > 2 * agents.size()) {
+                compact(file);
+            }
+        } catch (IOException e) {
+            LOGGER.warn("Failed to write the agent journal {}", file, e);
+            close();
+        }
+    }
+
+    /**
+     * Rewrites the journal with the current state of the agents.
+     */
+    private synchronized void compact(File file) throws IOException {
+        close();
+        final File tmp = new File(file.getPath() + ".tmp");
+        try (BufferedWriter out = Files.newBufferedWriter(tmp.toPath(), StandardCharsets.UTF_8)) {
+            for (Map.Entry<String, Entry> e : agents.entrySet()) {
+                out.write(e.getValue().state.name() + ' ' + e.getKey() + ' ' + e.getValue().label + '\n');
+            }
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        appended = 0;
+    }
+
+    private synchronized void close() {
+        if (writer != null) {
+            try {
+                writer.close();
+            } catch (IOException e) {
+                LOGGER.debug("Failed to close the agent journal", e);
+            }
+            writer = null;
+        }
+    }
+
+    /**
+     * Forgets the agents and closes the journal, as if the JVM was restarted. Used by tests.
+     */
+    synchronized void reset() {
+        close();
+        agents.clear();
+        recovering.clear();
+        appended = 0;
+    }
+
+    @CheckForNull
+    private static File file() {
+        final Jenkins jenkins = Jenkins.getInstanceOrNull();
+        return jenkins == null ? null : new File(jenkins.getRootDir(), AgentJournal.class.getName() + ".log");
+    }
+
+    /**
+     * Reads the last state of every agent from the journal and rewrites it without the history.
+     */
+    synchronized void load() {
+        final File file = file();
+        if (file == null || !file.exists()) {
+            return;
+        }
+        final Map<String, Entry> loaded = new HashMap<>();
+        try (BufferedReader in = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                final String[] fields = line.split(" ", 3);
+                if (fields.length < 3) {
+                    continue;
+                }
+                final State state;
+                try {
+                    state = State.valueOf(fields[0]);
+                } catch (IllegalArgumentException e) {
+                    continue;
+                }
+                if (state == State.GONE) {
+                    loaded.remove(fields[1]);
+                } else {
+                    loaded.put(fields[1], new Entry(fields[2], state));
+                }
+            }
+        } catch (IOException e) {
+            LOGGER.warn("Failed to read the agent journal {}", file, e);
+        }
+        agents.putAll(loaded);
+        recovering.putAll(loaded);
+        for (Map.Entry<String, Entry> e : loaded.entrySet()) {
+            AgentLifecycle.get().restore(e.getValue().label, e.getKey(), e.getValue().state);
+        }
+        try {
+            compact(file);
+        } catch (IOException e) {
+            LOGGER.warn("Failed to rewrite the agent journal {}", file, e);
+        }
+        LOGGER.info("Loaded {} agent(s) from the agent journal", loaded.size());
+    }
+
+    /**
+     * Reconciles the journal with the agents loaded from disk. Every agent is handled by its own task,
+     * the agents waiting to reconnect are checked once after {@link #RECONNECT_SECONDS}. Agents which
+     * are not journaled were launched again at startup and get their launch timeout if it is longer.
+     */
+    void reconcile() {
+        final Jenkins jenkins = Jenkins.get();
+        final Map<String, Entry> journal = new HashMap<>(recovering);
+        final List<String> waiting = new ArrayList<>();
+        int adopted = 0;
+        for (Node node : jenkins.getNodes()) {
+            final String label = AgentIndex.labelOf(node);
+            if (label == null) {
+                continue;
+            }
+            final String nodeName = node.getNodeName();
+            final Entry entry = journal.remove(nodeName);
+            final Computer computer = node.toComputer();
+            if (computer != null && computer.isOnline()) {
+                recovering.remove(nodeName);
+                adopted++;
+            } else if (entry == null) {
+                // not journaled, e.g. created before the journal existed
+                waiting.add(nodeName);
+            } else if (entry.state == State.PLANNED) {
+                Timer.get().submit(() -> discard((Slave) node, "stale placeholder", false));
+            } else if (entry.state == State.DRAINING || entry.state == State.DECOMMISSIONING) {
+                Timer.get().submit(() -> discard((Slave) node, "interrupted removal", true));
+            } else {
+                waiting.add(nodeName);
+            }
+        }
+        for (Map.Entry<String, Entry> e : journal.entrySet()) {
+            Timer.get().submit(() -> decommissionRemoved(e.getKey(), e.getValue().label));
+        }
+        final long timeout = Math.max(RECONNECT_SECONDS, JobNodesOnDemandConfiguration.current().getLaunchTimeout());
+        if (!waiting.isEmpty()) {
+            Timer.get().schedule(() -> {
+                for (String nodeName : waiting) {
+                    Timer.get().submit(() -> reconnectTimedOut(nodeName, timeout));
+                }
+            }, timeout, TimeUnit.SECONDS);
+        }
+        LOGGER.info("Adopted {} on demand agent(s), waiting up to {} seconds for {} to reconnect",
+                adopted, timeout, waiting.size());
+    }
+
+    private void reconnectTimedOut(String nodeName, long timeout) {
+        recovering.remove(nodeName);
+        final Node node = Jenkins.get().getNode(nodeName);
+        if (!(node instanceof Slave)) {
+            return;
+        }
+        final Computer computer = node.toComputer();
+        if (computer == null || !computer.isOnline()) {
+            discard((Slave) node, "orphan that did not reconnect within " + timeout + " seconds", true);
+        }
+    }
+
+    /**
+     * Removes an agent of the previous run, after decommissioning it if it may be running.
+     */
+    private void discard(Slave node, String reason, boolean decommission) {
+        final String nodeName = node.getNodeName();
+        LOGGER.info("Remove agent {}, {}", nodeName, reason);
+        recovering.remove(nodeName);
+        if (decommission && node.getLauncher() instanceof JobComputerLauncher) {
+            ((JobComputerLauncher) node.getLauncher()).decommission(nodeName);
+        }
+        try {
+            Jenkins.get().removeNode(node);
+        } catch (IOException e) {
+            LOGGER.warn("Failed to remove agent {}", nodeName, e);
+        }
+    }
+
+    /**
+     * Decommissions an agent that was launched but whose node is gone, with the current settings of its label.
+     */
+    private void decommissionRemoved(String nodeName, String label) {
+        final Entry entry = agents.get(nodeName);
+        if (entry != null && entry.state != State.PLANNED) {
+            final Label l = Jenkins.get().getLabel(label);
+            if (l != null) {
+                LOGGER.info("Decommission agent {} of label {}, its node is gone", nodeName, label);
+                final JobNodesOnDemandConfiguration.Snapshot config = JobNodesOnDemandConfiguration.current();
+                AgentsJob.getLauncher(config, config.resolve(l)).decommission(nodeName);
+            }
+        }
+        recovering.remove(nodeName);
+        AgentLifecycle.get().forget(nodeName);
+        record(label, nodeName, State.GONE);
+    }
+
+    private static final class Entry {
+        final String label;
+        final State state;
+
+        Entry(String label, State state) {
+            this.label = label;
+            this.state = state;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Entry && ((Entry) o).state == state && ((Entry) o).label.equals(label);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * label.hashCode() + state.hashCode();
+        }
+    }
+
+    /**
+     * Loads the journal before the global configuration. Its nodes are loaded with it and the
+     * {@link JobRetentionStrategy} of their computers already asks whether they are recovering.
+     */
+    @Initializer(after = InitMilestone.PLUGINS_STARTED, before = InitMilestone.EXTENSIONS_AUGMENTED)
+    public static void loadJournal() {
+        get().load();
+    }
+
+    @Initializer(after = InitMilestone.COMPLETED)
+    public static void reconcileAgents() {
+        Timer.get().submit(() -> get().reconcile());
+    }
+
+    @Extension
+    public static class ComputerEvents extends ComputerListener {
+        @Override
+        public void onOnline(Computer c, TaskListener listener) {
+            if (AgentIndex.labelOf(c.getNode()) != null) {
+                get().recovering.remove(c.getName());
+            }
+        }
+    }
+
+    @Extension
+    public static class NodeEvents extends NodeListener {
+        @Override
+        protected void onDeleted(@Nonnull Node node) {
+            get().recovering.remove(node.getNodeName());
+        }
+    }
+}
@@ -0,0 +1,429 @@
+package org.fr123k.jenkins.plugins.agents;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import hudson.Extension;
+import hudson.model.Computer;
+import hudson.model.Label;
+import hudson.model.Node;
+import hudson.model.PeriodicWork;
+import hudson.model.Queue;
+import hudson.model.Result;
+import hudson.model.Run;
+import hudson.model.Slave;
+import hudson.model.TaskListener;
+import hudson.model.listeners.RunListener;
+import hudson.slaves.ComputerListener;
+import io.jenkins.nodes.JobNodesOnDemandConfiguration;
+import io.jenkins.nodes.NormalizedLabel;
+import jenkins.model.Jenkins;
+import jenkins.model.NodeListener;
+import jenkins.util.Timer;
+
+/**
+ * Holds the {@link hudson.slaves.NodeProvisioner.PlannedNode} futures of on demand agents
+ * until their computer comes online, so the planned capacity of the provisioner only
+ * covers agents that are really on the way.
+ *
+ * <p>
+ * An agent that is not online within the launch timeout or whose provision build failed is
+ * launched again, which triggers the provision job once more. After the last retry the future
+ * fails and the agent is decommissioned and removed. Every failed attempt counts for the
+ * {@link LabelCircuitBreaker} of the label.
+ *
+ * <p>
+ * Every launch keeps the handle of its provision build. When the demand of the label is gone
+ * before the agent is online, the launch is cancelled together with its provision build.
+ */
+public final class AgentLaunchTracker {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(AgentLaunchTracker.class);
+
+    static final long CANCEL_GRACE_SECONDS = Long.getLong(AgentLaunchTracker.class.getName() + ".cancelGraceSeconds", 30);
+
+    private static final AgentLaunchTracker INSTANCE = new AgentLaunchTracker();
+
+    private final ConcurrentMap<String, PendingLaunch> pending = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, AtomicInteger> pendingByLabel = new ConcurrentHashMap<>();
+
+    public static AgentLaunchTracker get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Completes the future with the node once its computer is online.
+     *
+     * @param launchTimeout seconds to wait for every launch attempt
+     * @param launchRetries number of launches after the first one timed out
+     */
+    void track(final String label, final Slave node, final CompletableFuture<Node> future,
+            final int launchTimeout, final int launchRetries) {
+        final PendingLaunch launch = new PendingLaunch(label, node, future, launchTimeout, launchRetries);
+        AgentLifecycle.get().planned(label, node.getNodeName());
+        schedule(launch);
+        pendingByLabel.compute(label, (k, count) -> {
+            final AtomicInteger current = count == null ? new AtomicInteger() : count;
+            current.incrementAndGet();
+            return current;
+        });
+        pending.put(node.getNodeName(), launch);
+    }
+
+    void online(final String nodeName) {
+        final PendingLaunch launch = remove(nodeName);
+        if (launch != null) {
+            LabelCircuitBreaker.get().succeeded(launch.label);
+            launch.future.complete(launch.node);
+        }
+    }
+
+    void fail(final String nodeName, final Throwable cause) {
+        AgentLifecycle.get().discarded(nodeName);
+        final PendingLaunch launch = remove(nodeName);
+        if (launch != null) {
+            ProvisioningMetrics.get().failed(nodeName);
+            launch.future.completeExceptionally(cause);
+        }
+    }
+
+    /**
+     * Remembers the provision build of the agent, so it can be cancelled when the agent is not needed anymore.
+     */
+    void provisionBuild(final String nodeName, @CheckForNull final Future<?> build) {
+        final PendingLaunch launch = pending.get(nodeName);
+        if (launch != null) {
+            launch.build = build;
+        }
+    }
+
+    /**
+     * Cancels the launch of the agent because the demand it was provisioned for is gone. The provision
+     * build is cancelled unless it provisions other agents too, and the agent is decommissioned and removed.
+     *
+     * @return whether the launch was cancelled
+     */
+    boolean cancel(final String nodeName) {
+        final PendingLaunch launch = pending.get(nodeName);
+        if (launch == null) {
+            return false;
+        }
+        synchronized (launch) {
+            if (!pending.remove(nodeName, launch)) {
+                return false;
+            }
+            removed(launch);
+        }
+        LOGGER.info("Cancel the launch of agent {}, the demand of label {} is gone", nodeName, launch.label);
+        ProvisioningMetrics.get().cancelled(nodeName);
+        launch.future.completeExceptionally(
+                new IllegalStateException("Launch of agent " + nodeName + " cancelled, the demand is gone"));
+        JobTriggerBatcher.get().cancel(nodeName);
+        final Future<?> build = launch.build;
+        if (build != null && !build.isDone() && !isShared(build)) {
+            build.cancel(true);
+        }
+        discard(launch);
+        return true;
+    }
+
+    private boolean isShared(final Future<?> build) {
+        for (PendingLaunch launch : pending.values()) {
+            if (launch.build == build) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private PendingLaunch remove(final String nodeName) {
+        final PendingLaunch launch = pending.remove(nodeName);
+        if (launch != null) {
+            removed(launch);
+        }
+        return launch;
+    }
+
+    private void removed(final PendingLaunch launch) {
+        launch.timeout.cancel(false);
+        pendingByLabel.computeIfPresent(launch.label, (k, count) -> count.decrementAndGet() <= 0 ? null : count);
+    }
+
+    /** @return the number of agents that are provisioned but not online yet */
+    public int getPendingLaunches() {
+        return pending.size();
+    }
+
+    /** @return the number of agents of the label that are provisioned but not online yet */
+    public int getPendingLaunches(final String label) {
+        final AtomicInteger count = pendingByLabel.get(label);
+        return count == null ? 0 : count.get();
+    }
+
+    private void schedule(final PendingLaunch launch) {
+        launch.timeout = Timer.get().schedule(() -> timedOut(launch), launch.launchTimeout, TimeUnit.SECONDS);
+    }
+
+    private void timedOut(final PendingLaunch launch) {
+        final String nodeName = launch.node.getNodeName();
+        if (pending.get(nodeName) != launch) {
+            return;
+        }
+        final Computer computer = launch.node.toComputer();
+        if (computer != null && computer.isOnline()) {
+            online(nodeName);
+            return;
+        }
+        attemptFailed(launch, new TimeoutException(
+                "Agent " + nodeName + " did not come online within " + launch.launchTimeout + " seconds"), true);
+    }
+
+    /**
+     * The current launch attempt of the agent failed, e.g. its provision build failed.
+     */
+    void launchFailed(final String nodeName, final Throwable cause) {
+        launchesFailed(Collections.singletonList(nodeName), cause);
+    }
+
+    /**
+     * The current launch attempt of the agents failed together, e.g. because their provision build could
+     * not be triggered. It counts as a single failure for the circuit breaker of every label of the agents.
+     * Every failure of a launch backend ends up here.
+     */
+    void launchesFailed(final Collection<String> nodeNames, final Throwable cause) {
+        final Set<String> labels = new HashSet<>();
+        for (String nodeName : nodeNames) {
+            final PendingLaunch launch = pending.get(nodeName);
+            if (launch != null) {
+                attemptFailed(launch, cause, labels.add(launch.label));
+            }
+        }
+    }
+
+    /**
+     * The provision build failed, which fails the current launch attempt of every agent it provisions.
+     * The build counts as a single failure for the circuit breaker of a label, no matter how many
+     * agents of the label it provisions. Builds of other jobs with a {@code node} parameter are ignored.
+     */
+    void provisionFailed(final Run<?, ?> run, final Throwable cause) {
+        final String jobName = run.getParent().getFullName();
+        final List<String> nodeNames = new ArrayList<>();
+        for (String nodeName : ProvisioningMetrics.agentsOf(run)) {
+            final PendingLaunch launch = pending.get(nodeName);
+            if (launch != null && launch.node.getLauncher() instanceof JobComputerLauncher) {
+                final JobComputerLauncher launcher = (JobComputerLauncher) launch.node.getLauncher();
+                if (launcher.getBackend() instanceof JobLaunchBackend && jobName.equals(launcher.getProvisionJobName())) {
+                    nodeNames.add(nodeName);
+                }
+            }
+        }
+        launchesFailed(nodeNames, cause);
+    }
+
+    /**
+     * Launches the agent again unless it was the last retry or the circuit breaker of its label is open,
+     * in which case the agent is decommissioned and removed.
+     */
+    private void attemptFailed(final PendingLaunch launch, final Throwable cause, final boolean breakerFailure) {
+        final String nodeName = launch.node.getNodeName();
+        synchronized (launch) {
+            if (pending.get(nodeName) != launch) {
+                return;
+            }
+            if (breakerFailure) {
+                LabelCircuitBreaker.get().failed(launch.label);
+            }
+            final Computer computer = launch.node.toComputer();
+            if (launch.attempt < launch.launchRetries
+                    && LabelCircuitBreaker.get().getState(launch.label) != LabelCircuitBreaker.State.OPEN) {
+                launch.attempt++;
+                LOGGER.warn("Launch of agent {} failed: {}, launch attempt {} of {}",
+                        nodeName, cause.getMessage(), launch.attempt + 1, launch.launchRetries + 1);
+                launch.timeout.cancel(false);
+                schedule(launch);
+                if (computer != null) {
+                    AgentLifecycle.get().relaunch(nodeName);
+                    computer.connect(true);
+                }
+                return;
+            }
+            if (!pending.remove(nodeName, launch)) {
+                return;
+            }
+            removed(launch);
+        }
+        LOGGER.error("Agent {} not online after {} launch attempt(s), giving up", nodeName, launch.attempt + 1);
+        ProvisioningMetrics.get().failed(nodeName);
+        launch.future.completeExceptionally(cause);
+        discard(launch);
+    }
+
+    /**
+     * Decommissions and removes the agent of a launch that is not pending anymore.
+     */
+    private static void discard(final PendingLaunch launch) {
+        final String nodeName = launch.node.getNodeName();
+        if (launch.node.getLauncher() instanceof JobComputerLauncher) {
+            ((JobComputerLauncher) launch.node.getLauncher()).decommission(nodeName);
+        }
+        try {
+            Jenkins.get().removeNode(launch.node);
+        } catch (IOException e) {
+            LOGGER.warn("Failed to remove agent {}", nodeName, e);
+        }
+        // the node may not have been added yet
+        AgentLifecycle.get().forget(nodeName);
+    }
+
+    /**
+     * Cancels the launches that exceed the demand of their label: the buildable items not covered by the
+     * idle agents. Launches younger than {@link #CANCEL_GRACE_SECONDS} and agents provisioned ahead of
+     * demand are kept, the youngest launches are cancelled first.
+     */
+    void cancelStale() {
+        cancelStale(System.currentTimeMillis());
+    }
+
+    void cancelStale(final long now) {
+        final Jenkins jenkins = Jenkins.get();
+        final JobNodesOnDemandConfiguration.Snapshot config = JobNodesOnDemandConfiguration.current();
+        final long graceStart = now - TimeUnit.SECONDS.toMillis(CANCEL_GRACE_SECONDS);
+
+        final Map<String, List<PendingLaunch>> candidates = new HashMap<>();
+        for (PendingLaunch launch : pending.values()) {
+            if (launch.trackedAt < graceStart && !DemandForecast.get().isForecast(launch.node.getNodeName())) {
+                candidates.computeIfAbsent(launch.label, k -> new ArrayList<>()).add(launch);
+            }
+        }
+        if (candidates.isEmpty()) {
+            return;
+        }
+        // items of equivalent label expressions are served by the same launches
+        final Map<String, Integer> buildable = new HashMap<>();
+        for (Queue.BuildableItem item : jenkins.getQueue().getBuildableItems()) {
+            final Label assigned = item.getAssignedLabel();
+            if (assigned != null) {
+                buildable.merge(NormalizedLabel.keyOf(assigned), 1, Integer::sum);
+            }
+        }
+        for (Map.Entry<String, List<PendingLaunch>> entry : candidates.entrySet()) {
+            final String label = entry.getKey();
+            final Label l = jenkins.getLabel(label);
+            if (l == null) {
+                continue;
+            }
+            final int executors = config.resolve(l).getAgentExecutors();
+            final int uncovered = buildable.getOrDefault(label, 0)
+                    - AgentIndex.get().count(label, AgentIndex.State.IDLE) * executors;
+            final int needed = Math.max(0, (uncovered + executors - 1) / executors);
+            int surplus = getPendingLaunches(label) - needed;
+            if (surplus <= 0) {
+                continue;
+            }
+            final List<PendingLaunch> launches = entry.getValue();
+            launches.sort(Comparator.comparingLong((PendingLaunch launch) -> launch.trackedAt).reversed());
+            for (Iterator<PendingLaunch> it = launches.iterator(); surplus > 0 && it.hasNext();) {
+                if (cancel(it.next().node.getNodeName())) {
+                    surplus--;
+                }
+            }
+        }
+    }
+
+    private static final class PendingLaunch {
+        final String label;
+        final Slave node;
+        final CompletableFuture<Node> future;
+        final int launchTimeout, launchRetries;
+        final long trackedAt = System.currentTimeMillis();
+        volatile int attempt;
+        volatile ScheduledFuture<?> timeout;
+        /** the provision build of the current attempt, if the agent is launched by a job */
+        volatile Future<?> build;
+
+        PendingLaunch(String label, Slave node, CompletableFuture<Node> future, int launchTimeout, int launchRetries) {
+            this.label = label;
+            this.node = node;
+            this.future = future;
+            this.launchTimeout = launchTimeout;
+            this.launchRetries = launchRetries;
+        }
+    }
+
+    /**
+     * Completes the planned node once the agent is connected.
+     */
+    @Extension
+    public static class OnlineListener extends ComputerListener {
+        @Override
+        public void onOnline(Computer c, TaskListener listener) {
+            get().online(c.getName());
+        }
+    }
+
+    /**
+     * Cancels the launches nobody needs anymore.
+     */
+    @Extension
+    public static class StaleLaunches extends PeriodicWork {
+        @Override
+        public long getRecurrencePeriod() {
+            return TimeUnit.SECONDS.toMillis(10);
+        }
+
+        @Override
+        protected void doRun() {
+            get().cancelStale();
+        }
+    }
+
+    /**
+     * Fails the launch attempt of the agents whose provision build did not succeed.
+     */
+    @Extension
+    public static class ProvisionBuildListener extends RunListener<Run<?, ?>> {
+        @Override
+        public void onCompleted(Run<?, ?> run, @Nonnull TaskListener listener) {
+            final Result result = run.getResult();
+            if (result == null || result.isBetterOrEqualTo(Result.SUCCESS)) {
+                return;
+            }
+            get().provisionFailed(run, new IOException("Provision build " + run + " finished with " + result));
+        }
+    }
+
+    /**
+     * Fails the planned node if the agent is removed before it was online.
+     */
+    @Extension
+    public static class RemovedListener extends NodeListener {
+        @Override
+        protected void onDeleted(@Nonnull Node node) {
+            get().fail(node.getNodeName(),
+                    new IllegalStateException("Agent " + node.getNodeName() + " was removed before it was online"));
+        }
+    }
+}
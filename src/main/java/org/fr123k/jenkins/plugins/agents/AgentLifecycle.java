@@ -0,0 +1,324 @@
+package org.fr123k.jenkins.plugins.agents;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import hudson.Extension;
+import hudson.model.Computer;
+import hudson.model.Node;
+import hudson.model.Slave;
+import hudson.model.TaskListener;
+import hudson.slaves.ComputerListener;
+import hudson.slaves.OfflineCause;
+import jenkins.model.Jenkins;
+import jenkins.model.NodeListener;
+import jenkins.util.Timer;
+
+/**
+ * Lifecycle of every on demand agent, so the provision and decommission of an agent are triggered
+ * once no matter how often Jenkins launches or disconnects it.
+ *
+ * <p>
+ * Every agent moves through {@link State} with transitions serialized per agent, only the caller
+ * that made a transition triggers its side effect. A launch is only triggered from
+ * {@link State#PLANNED}, a retry of the {@link AgentLaunchTracker} moves the agent back there
+ * first. A decommission is only triggered once. An online agent whose channel drops gets
+ * {@link #RECONNECT_GRACE_SECONDS} to reconnect before it is decommissioned and removed. Every
+ * transition is written to the {@link AgentJournal} while the agent is locked, so the journal has
+ * the transitions of an agent in the order they were made.
+ *
+ * <p>
+ * The {@link AgentIndex} keeps the idle and busy agents per label for the provisioning decisions,
+ * this class only guards the triggers of a single agent.
+ */
+public final class AgentLifecycle {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(AgentLifecycle.class);
+
+    static final long RECONNECT_GRACE_SECONDS = Long.getLong(AgentLifecycle.class.getName() + ".reconnectGraceSeconds", 30);
+    /** Time a removed agent is remembered, so late events do not trigger it again. */
+    static final long GONE_RETENTION_SECONDS = 300;
+
+    public enum State {
+        /** The agent is created but not launched yet. */
+        PLANNED,
+        /** The agent is launched, e.g. its provision job is triggered. */
+        LAUNCHING,
+        /** The agent is or was connected. */
+        ONLINE,
+        /** The agent is taken offline to be removed. */
+        DRAINING,
+        /** The agent is being stopped. */
+        DECOMMISSIONING,
+        /** The agent is removed. */
+        GONE;
+
+        boolean canMoveTo(State next) {
+            switch (this) {
+            case PLANNED:
+                return next != PLANNED && next != DRAINING;
+            case LAUNCHING:
+                return next == PLANNED || next == ONLINE || next == DECOMMISSIONING || next == GONE;
+            case ONLINE:
+                return next == DRAINING || next == DECOMMISSIONING || next == GONE;
+            case DRAINING:
+                return next == ONLINE || next == DECOMMISSIONING || next == GONE;
+            case DECOMMISSIONING:
+                return next == GONE;
+            default:
+                return false;
+            }
+        }
+    }
+
+    private static final AgentLifecycle INSTANCE = new AgentLifecycle();
+
+    private final ConcurrentMap<String, Agent> agents = new ConcurrentHashMap<>();
+
+    public static AgentLifecycle get() {
+        return INSTANCE;
+    }
+
+    /** @return the state of the agent or {@code null} if it is unknown */
+    @CheckForNull
+    public State state(String nodeName) {
+        final Agent agent = agents.get(nodeName);
+        return agent == null ? null : agent.state;
+    }
+
+    /**
+     * A new agent was created for the label.
+     */
+    void planned(String label, String nodeName) {
+        final Agent agent = new Agent(label, State.PLANNED);
+        synchronized (agent) {
+            agents.put(nodeName, agent);
+            journal(label, nodeName, State.PLANNED);
+        }
+    }
+
+    /**
+     * Restores the state of an agent of the previous run, without journaling it again.
+     */
+    void restore(String label, String nodeName, State state) {
+        agents.putIfAbsent(nodeName, new Agent(label, state));
+    }
+
+    /**
+     * @return whether the caller launched the agent and has to trigger its provision, {@code false}
+     *         if it is launching, online or on its way out already
+     */
+    boolean launching(String label, String nodeName) {
+        return transition(agent(label, nodeName, State.PLANNED), nodeName, State.LAUNCHING);
+    }
+
+    /**
+     * The launch of the agent failed and it may be launched again.
+     */
+    void relaunch(String nodeName) {
+        final Agent agent = agents.get(nodeName);
+        if (agent != null) {
+            transition(agent, nodeName, State.PLANNED);
+        }
+    }
+
+    void online(String label, String nodeName) {
+        transition(agent(label, nodeName, State.PLANNED), nodeName, State.ONLINE);
+    }
+
+    void draining(String nodeName) {
+        final Agent agent = agents.get(nodeName);
+        if (agent != null) {
+            transition(agent, nodeName, State.DRAINING);
+        }
+    }
+
+    /**
+     * @return whether the caller has to trigger the decommission of the agent, {@code false} if it
+     *         is decommissioned already. Unknown agents, e.g. of a previous run, are decommissioned.
+     */
+    boolean decommissioning(String label, String nodeName) {
+        final Agent agent = agents.get(nodeName);
+        if (agent == null) {
+            final Agent unknown = new Agent(label, State.DECOMMISSIONING);
+            synchronized (unknown) {
+                if (agents.putIfAbsent(nodeName, unknown) != null) {
+                    return false;
+                }
+                journal(label, nodeName, State.DECOMMISSIONING);
+            }
+            // an agent without a node is never removed, so nothing else moves it to GONE
+            Timer.get().schedule(() -> {
+                if (Jenkins.get().getNode(nodeName) == null) {
+                    gone(unknown, nodeName);
+                }
+            }, GONE_RETENTION_SECONDS, TimeUnit.SECONDS);
+            return true;
+        }
+        return transition(agent, nodeName, State.DECOMMISSIONING);
+    }
+
+    /**
+     * The channel of the agent was closed. A draining agent is decommissioned right away, an online
+     * agent only if it did not reconnect within {@link #RECONNECT_GRACE_SECONDS}. Agents that never
+     * were online are left to the {@link AgentLaunchTracker}.
+     */
+    void disconnected(String nodeName, JobComputerLauncher launcher) {
+        final State state = state(nodeName);
+        if (state == null || state == State.DRAINING) {
+            launcher.decommission(nodeName);
+        } else if (state == State.ONLINE) {
+            LOGGER.debug("Agent {} disconnected, waiting {} seconds for it to reconnect", nodeName, RECONNECT_GRACE_SECONDS);
+            Timer.get().schedule(() -> reconnectTimedOut(nodeName, launcher), RECONNECT_GRACE_SECONDS, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Decommissions and removes the agent unless it reconnected or moved on meanwhile.
+     */
+    void reconnectTimedOut(String nodeName, JobComputerLauncher launcher) {
+        final Node node = Jenkins.get().getNode(nodeName);
+        final Computer computer = node == null ? null : node.toComputer();
+        if ((computer != null && computer.isOnline()) || state(nodeName) != State.ONLINE) {
+            return;
+        }
+        LOGGER.info("Agent {} did not reconnect within {} seconds", nodeName, RECONNECT_GRACE_SECONDS);
+        launcher.decommission(nodeName);
+        if (node != null) {
+            try {
+                Jenkins.get().removeNode(node);
+            } catch (IOException e) {
+                LOGGER.warn("Failed to remove agent {}", nodeName, e);
+            }
+        }
+    }
+
+    /**
+     * The agent was removed. An agent that was launched and not decommissioned yet is decommissioned now.
+     */
+    void gone(Node node) {
+        final String nodeName = node.getNodeName();
+        final Agent agent = agents.get(nodeName);
+        if (agent == null) {
+            return;
+        }
+        final State state = agent.state;
+        if ((state == State.LAUNCHING || state == State.ONLINE || state == State.DRAINING)
+                && node instanceof Slave && ((Slave) node).getLauncher() instanceof JobComputerLauncher) {
+            ((JobComputerLauncher) ((Slave) node).getLauncher()).decommission(nodeName);
+        }
+        gone(agent, nodeName);
+    }
+
+    /**
+     * An agent that was never launched is dropped, e.g. because it could not be added.
+     */
+    void discarded(String nodeName) {
+        final Agent agent = agents.get(nodeName);
+        if (agent != null && agent.state == State.PLANNED) {
+            gone(agent, nodeName);
+        }
+    }
+
+    /**
+     * Forgets all agents, as if the JVM was restarted. Used by tests.
+     */
+    void reset() {
+        agents.clear();
+    }
+
+    /**
+     * An agent without node, e.g. of a previous run, was decommissioned or never launched.
+     */
+    void forget(String nodeName) {
+        final Agent agent = agents.get(nodeName);
+        if (agent != null) {
+            gone(agent, nodeName);
+        }
+    }
+
+    private void gone(Agent agent, String nodeName) {
+        if (transition(agent, nodeName, State.GONE)) {
+            Timer.get().schedule(() -> agents.remove(nodeName, agent), GONE_RETENTION_SECONDS, TimeUnit.SECONDS);
+        }
+    }
+
+    private Agent agent(String label, String nodeName, State initial) {
+        return agents.computeIfAbsent(nodeName, k -> new Agent(label, initial));
+    }
+
+    /**
+     * Moves the agent to the next state if that is a valid transition of its current state.
+     *
+     * @return whether this call made the transition
+     */
+    private boolean transition(Agent agent, String nodeName, State next) {
+        synchronized (agent) {
+            if (!agent.state.canMoveTo(next)) {
+                return false;
+            }
+            agent.state = next;
+            journal(agent.label, nodeName, next);
+            return true;
+        }
+    }
+
+    private static void journal(String label, String nodeName, State state) {
+        AgentJournal.get().record(label, nodeName, state);
+    }
+
+    private static final class Agent {
+        final String label;
+        /** changed while the agent is locked */
+        volatile State state;
+
+        Agent(String label, State state) {
+            this.label = label;
+            this.state = state;
+        }
+    }
+
+    @Extension
+    public static class ComputerEvents extends ComputerListener {
+        @Override
+        public void onOnline(Computer c, TaskListener listener) {
+            final String label = AgentIndex.labelOf(c.getNode());
+            if (label != null && !c.isTemporarilyOffline()) {
+                get().online(label, c.getName());
+            }
+        }
+
+        @Override
+        public void onTemporarilyOffline(Computer c, OfflineCause cause) {
+            if (AgentIndex.labelOf(c.getNode()) != null) {
+                get().draining(c.getName());
+            }
+        }
+
+        @Override
+        public void onTemporarilyOnline(Computer c) {
+            final String label = AgentIndex.labelOf(c.getNode());
+            if (label != null && c.isOnline()) {
+                get().online(label, c.getName());
+            }
+        }
+    }
+
+    @Extension
+    public static class NodeEvents extends NodeListener {
+        @Override
+        protected void onDeleted(@Nonnull Node node) {
+            if (AgentIndex.labelOf(node) != null) {
+                get().gone(node);
+            }
+        }
+    }
+}
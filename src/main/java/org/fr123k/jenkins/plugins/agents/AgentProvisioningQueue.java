@@ -0,0 +1,109 @@
+package org.fr123k.jenkins.plugins.agents;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+
+/**
+ * Bounded worker pool that creates and registers on demand agents in the background,
+ * so the {@link hudson.slaves.NodeProvisioner} thread only hands out futures.
+ *
+ * <p>
+ * Keeps the number of outstanding provisions and the time the last provision
+ * waited for a worker per label.
+ */
+public final class AgentProvisioningQueue {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(AgentProvisioningQueue.class);
+
+    static final int WORKERS = Integer.getInteger(AgentProvisioningQueue.class.getName() + ".workers", 4);
+    static final int CAPACITY = Integer.getInteger(AgentProvisioningQueue.class.getName() + ".capacity", 1000);
+
+    private static final AgentProvisioningQueue INSTANCE = new AgentProvisioningQueue(WORKERS, CAPACITY);
+
+    private final ThreadPoolExecutor executor;
+    private final ConcurrentMap<String, LabelStats> stats = new ConcurrentHashMap<>();
+
+    AgentProvisioningQueue(int workers, int capacity) {
+        executor = new ThreadPoolExecutor(workers, workers, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(capacity),
+                new NamingThreadFactory(new DaemonThreadFactory(), "AgentProvisioningQueue"));
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    public static AgentProvisioningQueue get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Runs the provisioning task for the label on a worker thread.
+     *
+     * @throws RejectedExecutionException if the queue is full
+     */
+    public <T> CompletableFuture<T> submit(final String label, final Callable<T> task) {
+        final CompletableFuture<T> future = new CompletableFuture<>();
+        final LabelStats labelStats = stats.compute(label, (k, v) -> {
+            final LabelStats current = v == null ? new LabelStats() : v;
+            current.outstanding.incrementAndGet();
+            return current;
+        });
+        final long submitted = System.nanoTime();
+        try {
+            executor.execute(() -> {
+                final long waited = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - submitted);
+                labelStats.lastWaitMillis = waited;
+                LOGGER.debug("Provisioning for label {} waited {} ms, queue depth {}", label, waited, getQueueDepth());
+                try {
+                    future.complete(task.call());
+                } catch (final Throwable t) {
+                    future.completeExceptionally(t);
+                } finally {
+                    done(label);
+                }
+            });
+        } catch (final RejectedExecutionException e) {
+            done(label);
+            LOGGER.warn("Provisioning queue is full ({} waiting), rejected agent for label {}", getQueueDepth(), label);
+            throw e;
+        }
+        return future;
+    }
+
+    private void done(String label) {
+        stats.computeIfPresent(label, (k, v) -> v.outstanding.decrementAndGet() <= 0 ? null : v);
+    }
+
+    /** @return the number of provisions waiting for a worker */
+    public int getQueueDepth() {
+        return executor.getQueue().size();
+    }
+
+    /** @return the number of provisions of the label that are waiting or running */
+    public int getOutstanding(String label) {
+        final LabelStats labelStats = stats.get(label);
+        return labelStats == null ? 0 : labelStats.outstanding.get();
+    }
+
+    /** @return how long the last provision of the label waited for a worker, or -1 if none is outstanding */
+    public long getLastWaitMillis(String label) {
+        final LabelStats labelStats = stats.get(label);
+        return labelStats == null ? -1 : labelStats.lastWaitMillis;
+    }
+
+    private static final class LabelStats {
+        final AtomicInteger outstanding = new AtomicInteger();
+        volatile long lastWaitMillis;
+    }
+}
@@ -0,0 +1,130 @@
+package org.fr123k.jenkins.plugins.agents;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.kohsuke.stapler.HttpResponse;
+
+import hudson.Extension;
+import hudson.model.ManagementLink;
+import hudson.util.HttpResponses;
+import jenkins.model.Jenkins;
+import net.sf.json.JSONObject;
+
+/**
+ * Status page of the on demand agents at {@code /manage/agents-on-demand} with the agents per
+ * label and state, the provisioning in flight, the circuit breakers, the demand forecast and the latency metrics. The same data is
+ * available as JSON at {@code agents-on-demand/metrics}.
+ */
+@Extension
+public class AgentStatusLink extends ManagementLink {
+
+    @Override
+    public String getIconFileName() {
+        return "computer.png";
+    }
+
+    @Override
+    public String getDisplayName() {
+        return "Agents On Demand";
+    }
+
+    @Override
+    public String getDescription() {
+        return "Status and provisioning metrics of the agents created on demand.";
+    }
+
+    @Override
+    public String getUrlName() {
+        return "agents-on-demand";
+    }
+
+    public int getQueueDepth() {
+        return AgentProvisioningQueue.get().getQueueDepth();
+    }
+
+    public int getPendingLaunches() {
+        return AgentLaunchTracker.get().getPendingLaunches();
+    }
+
+    public int getInFlight() {
+        return ProvisioningLimiter.get().getInFlight();
+    }
+
+    public ProvisioningMetrics.Stage[] getStages() {
+        return ProvisioningMetrics.Stage.values();
+    }
+
+    public List<LabelStatus> getLabels() {
+        final Set<String> labels = new TreeSet<>(AgentIndex.get().labels());
+        labels.addAll(ProvisioningMetrics.get().labels());
+        final List<LabelStatus> statuses = new ArrayList<>(labels.size());
+        for (String label : labels) {
+            statuses.add(new LabelStatus(label));
+        }
+        return statuses;
+    }
+
+    public HttpResponse doMetrics() {
+        Jenkins.get().checkPermission(Jenkins.ADMINISTER);
+        final JSONObject json = new JSONObject();
+        json.put("queueDepth", getQueueDepth());
+        json.put("pendingLaunches", getPendingLaunches());
+        json.put("inFlight", getInFlight());
+        final JSONObject labels = new JSONObject();
+        for (LabelStatus status : getLabels()) {
+            labels.put(status.getLabel(), status.toJSON());
+        }
+        json.put("labels", labels);
+        return HttpResponses.okJSON(json);
+    }
+
+    public static final class LabelStatus {
+        private final String label;
+
+        LabelStatus(String label) {
+            this.label = label;
+        }
+
+        public String getLabel() { return label; }
+
+        public int getAgents(String state) {
+            return AgentIndex.get().count(label, AgentIndex.State.valueOf(state));
+        }
+
+        public int getOutstanding() { return AgentProvisioningQueue.get().getOutstanding(label); }
+        public int getPendingLaunches() { return AgentLaunchTracker.get().getPendingLaunches(label); }
+        public int getInFlight() { return ProvisioningLimiter.get().getInFlight(label); }
+        /** @return whether the label waits for capacity because of the provisioning limits */
+        public boolean isLimited() { return ProvisioningLimiter.get().isWaiting(label); }
+        public LabelCircuitBreaker.State getBreakerState() { return LabelCircuitBreaker.get().getState(label); }
+        public int getLaunchFailures() { return LabelCircuitBreaker.get().getFailures(label); }
+        public long getLastWaitMillis() { return AgentProvisioningQueue.get().getLastWaitMillis(label); }
+        /** @return the items per minute, rounded to one decimal */
+        public double getArrivalRate() { return Math.round(DemandForecast.get().getArrivalRate(label) * 10) / 10.0; }
+
+        public ProvisioningMetrics.LabelMetrics getMetrics() {
+            return ProvisioningMetrics.get().peek(label);
+        }
+
+        JSONObject toJSON() {
+            final JSONObject agents = new JSONObject();
+            for (AgentIndex.State state : AgentIndex.State.values()) {
+                agents.put(state.name().toLowerCase(), AgentIndex.get().count(label, state));
+            }
+            final JSONObject json = new JSONObject();
+            json.put("agents", agents);
+            json.put("outstanding", getOutstanding());
+            json.put("pendingLaunches", getPendingLaunches());
+            json.put("lastWaitMillis", getLastWaitMillis());
+            json.put("inFlight", getInFlight());
+            json.put("limited", isLimited());
+            json.put("breaker", LabelCircuitBreaker.get().toJSON(label));
+            json.put("arrivalRate", getArrivalRate());
+            json.putAll(getMetrics().toJSON());
+            return json;
+        }
+    }
+}
@@ -1,10 +1,8 @@
 package org.fr123k.jenkins.plugins.agents;
 
-import java.io.IOException;
 import java.util.UUID;
 import java.util.concurrent.CompletableFuture;
-
-import com.google.common.base.Throwables;
+import java.util.concurrent.RejectedExecutionException;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -15,10 +13,9 @@ import hudson.model.Slave;
 import hudson.slaves.ComputerLauncher;
 import hudson.slaves.DumbSlave;
 import hudson.slaves.NodeProvisioner;
-import hudson.slaves.OfflineCause;
-import hudson.slaves.RetentionStrategy;
+import io.jenkins.nodes.AgentTemplate;
 import io.jenkins.nodes.JobNodesOnDemandConfiguration;
-import jenkins.model.Jenkins;
+import io.jenkins.nodes.NormalizedLabel;
 
 /**
  * Docker Cloud configuration. Contains connection configuration,
@@ -33,85 +30,114 @@ public class AgentsJob {
     public AgentsJob() {
     }
 
-    public synchronized NodeProvisioner.PlannedNode provision(final Label label, final int numberOfExecutorsRequired) {
-        try {
-            LOGGER.info("Asked to provision {} slave(s) for: {}", numberOfExecutorsRequired, label);
-            
-            final CompletableFuture<Node> future = new CompletableFuture<>();
-            NodeProvisioner.PlannedNode plannedNode = new NodeProvisioner.PlannedNode(label.toString(), future, numberOfExecutorsRequired);
-            JobNodesOnDemandConfiguration config = JobNodesOnDemandConfiguration.get();
+    /**
+     * Plans a new agent for the label. The agent is created by the {@link AgentProvisioningQueue}
+     * and added to Jenkins by the {@link NodeRegistrar}, so this method returns without blocking the caller.
+     *
+     * @return the planned node or {@code null} if the provisioning queue is full
+     */
+    public NodeProvisioner.PlannedNode provision(final Label label, final int numberOfExecutorsRequired) {
+        return provision(JobNodesOnDemandConfiguration.current(), label, numberOfExecutorsRequired);
+    }
 
-            Slave node = null;
-            try {
-                final String nodeName = label + "-" + UUID.randomUUID().toString().substring(0, 6);
-                node = new DumbSlave(nodeName, config.getAgentWorkDir(), getLauncher(label));
-                node.setNodeDescription("Agent [" + label + "]");
-                node.setLabelString(label.toString());
-                node.setRetentionStrategy(RetentionStrategy.Always.INSTANCE);
-                future.complete(node);
+    /**
+     * Plans a new agent for the label with the given configuration.
+     *
+     * @see #provision(Label, int)
+     */
+    public NodeProvisioner.PlannedNode provision(final JobNodesOnDemandConfiguration.Snapshot config,
+            final Label label, final int numberOfExecutorsRequired) {
+        return provision(config, label, numberOfExecutorsRequired, false);
+    }
 
-                // On provisioning completion, let's trigger NodeProvisioner
-                robustlyAddNodeToJenkins(node);
+    /**
+     * Plans a new agent for the label with the given configuration.
+     *
+     * @param forecast whether the agent is provisioned ahead of demand, see {@link DemandForecast}
+     */
+    public NodeProvisioner.PlannedNode provision(final JobNodesOnDemandConfiguration.Snapshot config,
+            final Label label, final int numberOfExecutorsRequired, final boolean forecast) {
+        try {
+            LOGGER.debug("Asked to provision {} slave(s) for: {}", numberOfExecutorsRequired, label);
 
-            } catch (final Exception ex) {
-                LOGGER.error("Error in provisioning!", ex);
-                future.completeExceptionally(ex);
-                if (node != null) {
-                    node.toComputer().disconnect(new OfflineCause.LaunchFailed());
-                }
-                throw Throwables.propagate(ex);
+            final AgentTemplate.Resolved template = config.resolve(label);
+            final NormalizedLabel normalized = NormalizedLabel.of(label);
+            final String key = normalized.getKey();
+            final String nodeName = normalized.getName() + "-" + UUID.randomUUID().toString().substring(0, 6);
+            ProvisioningMetrics.get().decided(key, nodeName);
+            if (forecast) {
+                DemandForecast.get().planned(key, nodeName);
             }
-            return plannedNode;
+            final CompletableFuture<Node> future = new CompletableFuture<>();
+            try {
+                AgentProvisioningQueue.get().submit(key,
+                        () -> createAgent(config, template, normalized, nodeName, numberOfExecutorsRequired, future))
+                        .whenComplete((node, t) -> {
+                            if (t != null) {
+                                ProvisioningMetrics.get().failed(nodeName);
+                                DemandForecast.get().removed(nodeName);
+                                future.completeExceptionally(t);
+                            }
+                        });
+            } catch (final RejectedExecutionException e) {
+                // the queue is full, the agent was never planned
+                ProvisioningMetrics.get().failed(nodeName);
+                DemandForecast.get().removed(nodeName);
+                return null;
+            }
+            return new NodeProvisioner.PlannedNode(key, future, numberOfExecutorsRequired);
         } catch (final Exception e) {
             LOGGER.error("Exception while provisioning for label: '{}'", label, e);
             return null;
         }
     }
 
-    private static ComputerLauncher getLauncher(Label label) {
-        JobNodesOnDemandConfiguration config = JobNodesOnDemandConfiguration.get();
-        return new JobComputerLauncher(
-            config.getGitUrl(), 
-            config.getGitRevision(),
-            label.toString(),
-            config.toAgentImage(label),
-            config.getAgentProvisionJob(),
-            config.getAgentDecomissionJob());
-    }
-
     /**
-     * Workaround for Jenkins core issue in Nodes.java. There's a line there saying
-     * "<i>TODO there is a theoretical race whereby the node instance is
-     * updated/removed after lock release</i>". When we're busy adding nodes this is
-     * not merely "theoretical"!
-     * 
-     * @see <a href=
-     *      "https://github.com/jenkinsci/jenkins/blob/d2276c3c9b16fd46a3912ab8d58c418e67d8ce3e/core/src/main/java/jenkins/model/Nodes.java#L141">
-     *      Nodes.java</a>
-     * 
-     * @param slave The slave to be added to Jenkins
-     * @throws IOException if it all failed horribly every time we tried.
+     * Creates the agent and hands it to the {@link NodeRegistrar}. The {@code future} is completed by the
+     * {@link AgentLaunchTracker} once the agent is online.
      */
-    private static void robustlyAddNodeToJenkins(final Slave slave) throws IOException {
-        // don't retry getInstance - fail immediately if that fails.
-        final Jenkins jenkins = Jenkins.get();
-        final int maxAttempts = 10;
-        for (int attempt = 1;; attempt++) {
-            try {
-                // addNode can fail at random due to a race condition.
-                jenkins.addNode(slave);
-                return;
-            } catch (IOException | RuntimeException ex) {
-                if (attempt > maxAttempts) {
-                    throw ex;
-                }
-                final long delayInMilliseconds = 10L * attempt;
-                try {
-                    Thread.sleep(delayInMilliseconds);
-                } catch (final InterruptedException e) {
-                    throw new IOException(e);
-                }
+    private static Node createAgent(final JobNodesOnDemandConfiguration.Snapshot config,
+            final AgentTemplate.Resolved template, final NormalizedLabel label, final String nodeName,
+            final int numberOfExecutorsRequired, final CompletableFuture<Node> future) throws Exception {
+        Slave node = null;
+        try {
+            node = newAgent(config, template, label, nodeName, numberOfExecutorsRequired);
+            AgentLaunchTracker.get().track(label.getKey(), node, future, config.getLaunchTimeout(), config.getLaunchRetries());
+
+            // The agent is launched as soon as it is added, which triggers the provision job
+            NodeRegistrar.get().register(node);
+            return node;
+        } catch (final Exception ex) {
+            LOGGER.error("Error in provisioning!", ex);
+            if (node != null) {
+                AgentLaunchTracker.get().fail(node.getNodeName(), ex);
             }
+            throw ex;
         }
     }
+
+    /**
+     * Builds the agent node for the template, without registering it. The agent gets the atoms of the
+     * label, so it serves every label expression they satisfy.
+     */
+    static Slave newAgent(final JobNodesOnDemandConfiguration.Snapshot config, final AgentTemplate.Resolved template,
+            final NormalizedLabel label, final String nodeName, final int numberOfExecutorsRequired) throws Exception {
+        final Slave node = new DumbSlave(nodeName, template.getAgentWorkDir(), getLauncher(config, template));
+        node.setNodeDescription("Agent [" + label.getKey() + "]");
+        node.setNumExecutors(numberOfExecutorsRequired);
+        node.setLabelString(label.getLabelString());
+        node.setRetentionStrategy(new JobRetentionStrategy(label.getKey(), template.getIdleTimeout(), template.getMinIdleAgents()));
+        return node;
+    }
+
+    static JobComputerLauncher getLauncher(JobNodesOnDemandConfiguration.Snapshot config, AgentTemplate.Resolved template) {
+        return new JobComputerLauncher(
+            config.getGitUrl(), 
+            config.getGitRevision(),
+            template.getLabel(),
+            template.getAgentImage(),
+            template.getAgentProvisionJob(),
+            template.getAgentDecomissionJob(),
+            template.getLaunchBackend());
+    }
 }
@@ -0,0 +1,201 @@
+package org.fr123k.jenkins.plugins.agents;
+
+import static java.util.logging.Level.FINE;
+import static java.util.logging.Level.INFO;
+import static java.util.logging.Level.WARNING;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+import org.apache.commons.lang.StringUtils;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+import org.kohsuke.stapler.QueryParameter;
+
+import hudson.Extension;
+import hudson.Functions;
+import hudson.model.Descriptor;
+import hudson.slaves.SlaveComputer;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.FormValidation;
+import hudson.util.NamingThreadFactory;
+import jenkins.model.Jenkins;
+
+/**
+ * Starts the agent by running a command on the controller, without a build in the queue.
+ *
+ * <p>
+ * The command runs with the agent parameters as environment variables {@code NODE}, {@code LABEL},
+ * {@code IMAGE}, {@code REVISION}, {@code GIT_URL} and {@code GIT_REVISION}, plus
+ * {@code JENKINS_URL}, {@code JENKINS_AGENT_NAME} and {@code JENKINS_SECRET} to connect the
+ * inbound agent. The command has to return once the agent is started, commands still running
+ * after {@link #getTimeout()} seconds are killed. Commands run on a bounded pool shared by all agents,
+ * their output goes to {@code logs/CommandLaunchBackend/<node>.log} in the Jenkins home and is only
+ * kept when a command fails. A provision command that fails, times out or finds the pool full fails
+ * the launch attempt in the {@link AgentLaunchTracker}.
+ */
+public class CommandLaunchBackend extends LaunchBackend {
+    private static final Logger LOGGER = Logger.getLogger(CommandLaunchBackend.class.getName());
+
+    static final int WORKERS = Integer.getInteger(CommandLaunchBackend.class.getName() + ".workers", 8);
+    static final int CAPACITY = Integer.getInteger(CommandLaunchBackend.class.getName() + ".capacity", 1000);
+
+    private static final ThreadPoolExecutor EXECUTOR = new ThreadPoolExecutor(WORKERS, WORKERS, 60, TimeUnit.SECONDS,
+            new ArrayBlockingQueue<>(CAPACITY),
+            new NamingThreadFactory(new DaemonThreadFactory(), "CommandLaunchBackend"));
+
+    static {
+        EXECUTOR.allowCoreThreadTimeOut(true);
+    }
+
+    private final String command;
+    private String decommissionCommand;
+    private int timeout = 60;
+
+    @DataBoundConstructor
+    public CommandLaunchBackend(String command) {
+        this.command = command;
+    }
+
+    public String getCommand() { return command; }
+
+    public String getDecommissionCommand() { return decommissionCommand; }
+    @DataBoundSetter public void setDecommissionCommand(String decommissionCommand) { this.decommissionCommand = StringUtils.trimToNull(decommissionCommand); }
+
+    /** @return the seconds a command may run */
+    public int getTimeout() { return timeout; }
+    @DataBoundSetter public void setTimeout(int timeout) { this.timeout = timeout; }
+
+    @Override
+    public void provision(final SlaveComputer computer, final JobComputerLauncher launcher) {
+        ProvisioningMetrics.get().scheduled(computer.getName());
+        run(command, computer.getName(), computer.getJnlpMac(), launcher, true);
+    }
+
+    @Override
+    public void decommission(final String nodeName, final JobComputerLauncher launcher) {
+        if (decommissionCommand != null) {
+            run(decommissionCommand, nodeName, null, launcher, false);
+        }
+    }
+
+    private void run(final String script, final String nodeName, @CheckForNull final String secret,
+            final JobComputerLauncher launcher, final boolean provision) {
+        try {
+            EXECUTOR.execute(() -> {
+                if (provision) {
+                    ProvisioningMetrics.get().started(nodeName);
+                }
+                try {
+                    final int exitCode = exec(script, nodeName, secret, launcher);
+                    if (exitCode != 0) {
+                        failed(nodeName, provision, new IOException(exitCode < 0
+                                ? "Command for agent " + nodeName + " did not finish within " + timeout + " seconds"
+                                : "Command for agent " + nodeName + " exited with " + exitCode));
+                    }
+                } catch (IOException e) {
+                    failed(nodeName, provision, e);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            failed(nodeName, provision, new IOException(
+                    "Too many pending agent commands, skipped the command for agent " + nodeName, e));
+        }
+    }
+
+    /**
+     * Fails the current launch attempt of the agent if its provision command failed, so it is launched
+     * again or removed without waiting for the launch timeout.
+     */
+    private static void failed(final String nodeName, final boolean provision, final IOException cause) {
+        LOGGER.log(WARNING, "Command for agent " + nodeName + " failed", cause);
+        if (provision) {
+            AgentLaunchTracker.get().launchFailed(nodeName, cause);
+        }
+    }
+
+    private int exec(final String script, final String nodeName, @CheckForNull final String secret,
+            final JobComputerLauncher launcher) throws IOException, InterruptedException {
+        final ProcessBuilder builder = Functions.isWindows()
+                ? new ProcessBuilder("cmd", "/c", script)
+                : new ProcessBuilder("sh", "-c", script);
+        // the output goes to a file, an agent started in the background may keep a pipe open forever
+        final File log = logFile(nodeName);
+        builder.redirectErrorStream(true);
+        builder.redirectOutput(ProcessBuilder.Redirect.to(log));
+
+        final Map<String, String> env = builder.environment();
+        put(env, "NODE", nodeName);
+        put(env, "LABEL", launcher.getLabel());
+        put(env, "IMAGE", launcher.getImage());
+        put(env, "REVISION", launcher.getGitRevision());
+        put(env, "GIT_URL", launcher.getGitUrl());
+        put(env, "GIT_REVISION", launcher.getGitRevision());
+        put(env, "JENKINS_URL", Jenkins.get().getRootUrl());
+        put(env, "JENKINS_AGENT_NAME", nodeName);
+        put(env, "JENKINS_SECRET", secret);
+
+        LOGGER.log(INFO, "Run command for agent {0}.", new Object[] { nodeName });
+        final Process process = builder.start();
+        if (!process.waitFor(timeout, TimeUnit.SECONDS)) {
+            LOGGER.log(WARNING, "Command for agent {0} still running after {1} seconds, killing it, see {2}.",
+                    new Object[] { nodeName, timeout, log });
+            process.destroyForcibly();
+            return -1;
+        }
+        final int exitCode = process.exitValue();
+        if (exitCode == 0) {
+            Files.deleteIfExists(log.toPath());
+        } else {
+            LOGGER.log(FINE, "Output of the command for agent {0} is kept in {1}.", new Object[] { nodeName, log });
+        }
+        return exitCode;
+    }
+
+    /**
+     * @return the file the output of the commands of the agent goes to, it is kept if a command fails
+     */
+    private static File logFile(String nodeName) throws IOException {
+        final File dir = new File(Jenkins.get().getRootDir(), "logs/" + CommandLaunchBackend.class.getSimpleName());
+        Files.createDirectories(dir.toPath());
+        return new File(dir, nodeName + ".log");
+    }
+
+    private static void put(Map<String, String> env, String name, @CheckForNull String value) {
+        if (value != null) {
+            env.put(name, value);
+        }
+    }
+
+    @Extension
+    public static class DescriptorImpl extends Descriptor<LaunchBackend> {
+        @Nonnull
+        @Override
+        public String getDisplayName() {
+            return "Run a command on the controller";
+        }
+
+        public FormValidation doCheckCommand(@QueryParameter String value) {
+            if (StringUtils.isBlank(value)) {
+                return FormValidation.error("Please specify a command.");
+            }
+            return FormValidation.ok();
+        }
+
+        public FormValidation doCheckTimeout(@QueryParameter String value) {
+            return FormValidation.validatePositiveInteger(value);
+        }
+    }
+}
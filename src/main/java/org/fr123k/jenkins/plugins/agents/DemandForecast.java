@@ -0,0 +1,141 @@
+package org.fr123k.jenkins.plugins.agents;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.annotation.Nonnull;
+
+import hudson.Extension;
+import hudson.model.Node;
+import hudson.model.PeriodicWork;
+import jenkins.model.NodeListener;
+
+/**
+ * Forecasts the demand of a label from the rate its items entered the queue.
+ *
+ * <p>
+ * Every label keeps an exponentially weighted moving average of its arrivals per minute, so the
+ * history of a label costs a few fields no matter how long it is tracked. The strategy provisions
+ * the expected arrivals of the forecast horizon ahead, and the agents provisioned that way are
+ * reported as used once they accept a task or as unused when they are removed before.
+ *
+ * <p>
+ * The forecast counts every arrival expected within the horizon as an executor of its own, as if
+ * all of them ran at the same time. The duration of the builds is not tracked, so an executor that
+ * is freed within the horizon and takes the next item is not accounted for. The forecast is an
+ * upper bound for builds shorter than the horizon, which {@code maxForecastAgents} caps.
+ */
+public final class DemandForecast {
+
+    /** Weight of the last minute in the moving average. */
+    static final double ALPHA = Double.parseDouble(System.getProperty(DemandForecast.class.getName() + ".alpha", "0.3"));
+    static final int MAX_TRACKED_LABELS = Integer.getInteger(DemandForecast.class.getName() + ".maxTrackedLabels", 1000);
+
+    /** Rate below which a label without arrivals is forgotten. */
+    private static final double MIN_RATE = 0.01;
+
+    private static final DemandForecast INSTANCE = new DemandForecast();
+
+    private final ConcurrentMap<String, History> labels = new ConcurrentHashMap<>();
+    /** Agents provisioned ahead of demand which have not accepted a task yet, by name. */
+    private final ConcurrentMap<String, String> forecastAgents = new ConcurrentHashMap<>();
+
+    public static DemandForecast get() {
+        return INSTANCE;
+    }
+
+    /** An item of the label entered the buildable state. */
+    public void arrived(String label) {
+        History history = labels.get(label);
+        if (history == null) {
+            if (labels.size() >= MAX_TRACKED_LABELS) {
+                return;
+            }
+            history = labels.computeIfAbsent(label, k -> new History());
+        }
+        history.arrivals.increment();
+    }
+
+    /** @return the average number of items per minute of the label */
+    public double getArrivalRate(String label) {
+        final History history = labels.get(label);
+        return history == null ? 0 : history.rate;
+    }
+
+    /**
+     * @return the number of items expected to arrive for the label within the next {@code minutes},
+     *         each of which is assumed to need an executor
+     */
+    public int forecast(String label, int minutes) {
+        return (int) Math.ceil(getArrivalRate(label) * minutes);
+    }
+
+    /** The agent was provisioned ahead of demand. */
+    public void planned(String label, String nodeName) {
+        forecastAgents.put(nodeName, label);
+        ProvisioningMetrics.get().label(label).forecast.increment();
+    }
+
+    /** @return whether the agent was provisioned ahead of demand and has not accepted a task yet */
+    public boolean isForecast(String nodeName) {
+        return forecastAgents.containsKey(nodeName);
+    }
+
+    void used(String nodeName) {
+        final String label = forecastAgents.remove(nodeName);
+        if (label != null) {
+            ProvisioningMetrics.get().label(label).forecastUsed.increment();
+        }
+    }
+
+    void removed(String nodeName) {
+        final String label = forecastAgents.remove(nodeName);
+        if (label != null) {
+            ProvisioningMetrics.get().label(label).forecastUnused.increment();
+        }
+    }
+
+    /**
+     * Folds the arrivals of the last minute into the moving averages.
+     */
+    void sample() {
+        for (Iterator<Map.Entry<String, History>> it = labels.entrySet().iterator(); it.hasNext();) {
+            final History history = it.next().getValue();
+            final long arrivals = history.arrivals.sumThenReset();
+            history.rate = ALPHA * arrivals + (1 - ALPHA) * history.rate;
+            if (arrivals == 0 && history.rate < MIN_RATE) {
+                it.remove();
+            }
+        }
+    }
+
+    private static final class History {
+        final LongAdder arrivals = new LongAdder();
+        volatile double rate;
+    }
+
+    @Extension
+    public static class Sampler extends PeriodicWork {
+        @Override
+        public long getRecurrencePeriod() {
+            return TimeUnit.MINUTES.toMillis(1);
+        }
+
+        @Override
+        protected void doRun() {
+            get().sample();
+        }
+    }
+
+    @Extension
+    public static class Cleanup extends NodeListener {
+        @Override
+        protected void onDeleted(@Nonnull Node node) {
+            get().removed(node.getNodeName());
+        }
+    }
+}
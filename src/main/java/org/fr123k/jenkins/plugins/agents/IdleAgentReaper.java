@@ -0,0 +1,165 @@
+package org.fr123k.jenkins.plugins.agents;
+
+import static java.util.logging.Level.INFO;
+import static java.util.logging.Level.WARNING;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import javax.annotation.Nonnull;
+
+import hudson.Extension;
+import hudson.ExtensionList;
+import hudson.model.Computer;
+import hudson.model.Node;
+import hudson.model.PeriodicWork;
+import hudson.model.Queue;
+import hudson.model.Slave;
+import hudson.slaves.OfflineCause;
+import jenkins.model.Jenkins;
+import jenkins.model.NodeListener;
+
+/**
+ * Reclaims on demand agents whose {@link JobRetentionStrategy} reported them as idle
+ * for longer than their idle timeout.
+ *
+ * <p>
+ * The reaper only knows the expired agents per label and takes the idle count from the
+ * {@link AgentIndex}, so a pass costs time proportional to the number of expired agents
+ * and never scans the whole node list. Every pass takes at
+ * most {@link #BATCH_SIZE} agents offline under a single queue lock and removes them
+ * afterwards, which in turn triggers the decommission job of their {@link JobComputerLauncher}.
+ */
+@Extension
+public class IdleAgentReaper extends PeriodicWork {
+
+    private static final Logger LOGGER = Logger.getLogger(IdleAgentReaper.class.getName());
+
+    static final int BATCH_SIZE = Integer.getInteger(IdleAgentReaper.class.getName() + ".batchSize", 20);
+
+    /** Idle agents per label that reached their idle timeout. */
+    private final ConcurrentMap<String, Set<String>> expiredAgents = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Integer> minIdleAgents = new ConcurrentHashMap<>();
+
+    public static IdleAgentReaper get() {
+        return ExtensionList.lookupSingleton(IdleAgentReaper.class);
+    }
+
+    void busy(String label, String nodeName) {
+        remove(expiredAgents, label, nodeName);
+    }
+
+    void expired(String label, String nodeName, int minIdle) {
+        minIdleAgents.put(label, minIdle);
+        agents(expiredAgents, label).add(nodeName);
+    }
+
+    private static Set<String> agents(ConcurrentMap<String, Set<String>> agents, String label) {
+        return agents.computeIfAbsent(label, k -> ConcurrentHashMap.newKeySet());
+    }
+
+    private static void remove(ConcurrentMap<String, Set<String>> agents, String label, String nodeName) {
+        agents.computeIfPresent(label, (k, names) -> {
+            names.remove(nodeName);
+            return names.isEmpty() ? null : names;
+        });
+    }
+
+    @Override
+    public long getRecurrencePeriod() {
+        return TimeUnit.SECONDS.toMillis(30);
+    }
+
+    @Override
+    protected void doRun() {
+        final List<Computer> batch = nextBatch();
+        if (batch.isEmpty()) {
+            return;
+        }
+
+        final List<Node> reclaimed = new ArrayList<>(batch.size());
+        Queue.withLock(() -> {
+            for (Computer computer : batch) {
+                final Node node = computer.getNode();
+                // a task could have been assigned since the retention check
+                if (node != null && computer.isIdle()) {
+                    computer.setTemporarilyOffline(true, new IdleOfflineCause());
+                    reclaimed.add(node);
+                }
+            }
+        });
+
+        final Jenkins jenkins = Jenkins.get();
+        for (Node node : reclaimed) {
+            try {
+                jenkins.removeNode(node);
+                final String label = AgentIndex.labelOf(node);
+                if (label != null) {
+                    ProvisioningMetrics.get().reclaimed(label);
+                }
+            } catch (IOException e) {
+                LOGGER.log(WARNING, "Failed to remove idle agent " + node.getNodeName(), e);
+            }
+        }
+        LOGGER.log(INFO, "Reclaimed {0} idle agent(s).", new Object[] { reclaimed.size() });
+    }
+
+    private List<Computer> nextBatch() {
+        final Jenkins jenkins = Jenkins.get();
+        final List<Computer> batch = new ArrayList<>();
+        for (Map.Entry<String, Set<String>> entry : expiredAgents.entrySet()) {
+            final String label = entry.getKey();
+            int reclaimable = AgentIndex.get().count(label, AgentIndex.State.IDLE) - minIdleAgents.getOrDefault(label, 0);
+
+            final Iterator<String> names = entry.getValue().iterator();
+            while (reclaimable > 0 && batch.size() < BATCH_SIZE && names.hasNext()) {
+                final String name = names.next();
+                names.remove();
+
+                final Node node = jenkins.getNode(name);
+                final Computer computer = node == null ? null : node.toComputer();
+                if (computer != null) {
+                    batch.add(computer);
+                    reclaimable--;
+                }
+            }
+            if (batch.size() >= BATCH_SIZE) {
+                break;
+            }
+        }
+        expiredAgents.values().removeIf(Set::isEmpty);
+        return batch;
+    }
+
+    /**
+     * Marks the agent as offline while it is being reclaimed.
+     */
+    public static class IdleOfflineCause extends OfflineCause {
+        @Override
+        public String toString() {
+            return "Idle timeout reached, the on demand agent is reclaimed";
+        }
+    }
+
+    /**
+     * Forgets agents that are removed by someone else.
+     */
+    @Extension
+    public static class Cleanup extends NodeListener {
+        @Override
+        protected void onDeleted(@Nonnull Node node) {
+            if (node instanceof Slave && ((Slave) node).getRetentionStrategy() instanceof JobRetentionStrategy) {
+                final String label = ((JobRetentionStrategy) ((Slave) node).getRetentionStrategy()).getLabel();
+                get().busy(label, node.getNodeName());
+            }
+        }
+    }
+}
@@ -1,29 +1,27 @@
 package org.fr123k.jenkins.plugins.agents;
 
+import static java.util.logging.Level.FINE;
 import static java.util.logging.Level.INFO;
 
-import java.util.ArrayList;
-import java.util.List;
 import java.util.logging.Logger;
 
-import com.google.common.base.Strings;
-
-import hudson.model.ParameterValue;
-import hudson.model.ParametersAction;
-import hudson.model.StringParameterValue;
 import hudson.model.TaskListener;
 import hudson.slaves.JNLPLauncher;
 import hudson.slaves.SlaveComputer;
-import jenkins.model.Jenkins;
-import jenkins.model.ParameterizedJobMixIn.ParameterizedJob;
 
 public class JobComputerLauncher extends JNLPLauncher {
     private static final Logger LOGGER = Logger.getLogger(JobComputerLauncher.class.getName());
 
     private final String gitUrl, gitRevision, label, image, provisionJobName, decomissionJobName;
+    private final LaunchBackend backend;
 
     public JobComputerLauncher(final String gitUrl, final String gitRevision, final String label, final String image,
             final String provisionJobName, final String decomissionJobName) {
+        this(gitUrl, gitRevision, label, image, provisionJobName, decomissionJobName, null);
+    }
+
+    public JobComputerLauncher(final String gitUrl, final String gitRevision, final String label, final String image,
+            final String provisionJobName, final String decomissionJobName, final LaunchBackend backend) {
         super(true);
         this.gitUrl = gitUrl;
         this.gitRevision = gitRevision;
@@ -31,6 +29,19 @@ public class JobComputerLauncher extends JNLPLauncher {
         this.image = image;
         this.provisionJobName = provisionJobName;
         this.decomissionJobName = decomissionJobName;
+        this.backend = backend;
+    }
+
+    public String getGitUrl() { return gitUrl; }
+    public String getGitRevision() { return gitRevision; }
+    public String getLabel() { return label; }
+    public String getImage() { return image; }
+    public String getProvisionJobName() { return provisionJobName; }
+    public String getDecomissionJobName() { return decomissionJobName; }
+
+    /** @return the backend starting and stopping the agent, the {@link JobLaunchBackend} by default */
+    public LaunchBackend getBackend() {
+        return backend == null ? new JobLaunchBackend() : backend;
     }
 
     @Override
@@ -40,34 +51,13 @@ public class JobComputerLauncher extends JNLPLauncher {
 
     @Override
     public void launch(final SlaveComputer computer, final TaskListener listener) {
-        final Jenkins jenkins = Jenkins.get();
-        LOGGER.log(INFO, "Launch agent {0}.", new Object[] { computer.getName() });
-
-        List<ParameterValue> parameters = new ArrayList<>();
-
-        addParam(parameters, "node", computer.getName());
-        addParam(parameters, "label", label);
-        addParam(parameters, "revision", gitRevision);
-        addParam(parameters, "gitUrl", gitUrl);
-        addParam(parameters, "image", image);
-        addParam(parameters, "gitRevision", gitRevision);
-
-        ParameterizedJob job = jenkins.getItemByFullName(provisionJobName, ParameterizedJob.class);
-
-        if (job == null) {
-            throw new RuntimeException(
-                    "The agent provision job '" + provisionJobName + "' of type 'ParameterizedJob.class' was not found!");
+        if (!AgentLifecycle.get().launching(label, computer.getName())) {
+            LOGGER.log(FINE, "Agent {0} is {1}, not launching it again.",
+                    new Object[] { computer.getName(), AgentLifecycle.get().state(computer.getName()) });
+            return;
         }
-        LOGGER.log(INFO, "Trigger job {0} for agent {1}.", new Object[] { job, computer.getName() });
-        job.scheduleBuild2(1, new ParametersAction(parameters));
-    }
-
-    private static List<ParameterValue> addParam(List<ParameterValue> parameters, String name, String value) {
-        if (Strings.isNullOrEmpty(value)) {
-            return parameters;
-        }
-        parameters.add(new StringParameterValue(name, value));
-        return parameters;
+        LOGGER.log(INFO, "Launch agent {0}.", new Object[] { computer.getName() });
+        getBackend().provision(computer, this);
     }
 
     /**
@@ -83,21 +73,21 @@ public class JobComputerLauncher extends JNLPLauncher {
      */
     @Override
     public void afterDisconnect(SlaveComputer computer, TaskListener listener) {
-        final Jenkins jenkins = Jenkins.get();
-        LOGGER.log(INFO, "Stop agent {0}.", new Object[] { computer.getName() });
-
-        List<ParameterValue> parameters = new ArrayList<>();
-        addParam(parameters, "agentID", computer.getName());
-        addParam(parameters, "label", label);
-
-        ParameterizedJob job = jenkins.getItemByFullName(decomissionJobName, ParameterizedJob.class);
+        AgentLifecycle.get().disconnected(computer.getName(), this);
+    }
 
-        if (job == null) {
-            throw new RuntimeException(
-                    "The agent provision job '" + decomissionJobName + "' of type 'ParameterizedJob.class' was not found!");
+    /**
+     * Stops the agent through its {@link LaunchBackend}, by default the decommission job is triggered.
+     * An agent is only stopped once, see {@link AgentLifecycle}.
+     */
+    public void decommission(String nodeName) {
+        if (!AgentLifecycle.get().decommissioning(label, nodeName)) {
+            LOGGER.log(FINE, "Agent {0} is decommissioned already.", new Object[] { nodeName });
+            return;
         }
-        LOGGER.log(INFO, "Trigger job {0} for agent {1}.", new Object[] { job, computer.getName() });
-        job.scheduleBuild2(1, new ParametersAction(parameters));
+        LOGGER.log(INFO, "Stop agent {0}.", new Object[] { nodeName });
+        ProvisioningMetrics.get().decommissioned(nodeName);
+        getBackend().decommission(nodeName, this);
     }
 
     // @Extension
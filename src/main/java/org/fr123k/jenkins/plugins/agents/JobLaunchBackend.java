@@ -0,0 +1,135 @@
+package org.fr123k.jenkins.plugins.agents;
+
+import static java.util.logging.Level.FINE;
+import static java.util.logging.Level.WARNING;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Logger;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+import org.kohsuke.stapler.DataBoundConstructor;
+
+import com.google.common.base.Strings;
+
+import hudson.Extension;
+import hudson.model.Descriptor;
+import hudson.model.ParameterValue;
+import hudson.model.ParametersAction;
+import hudson.model.StringParameterValue;
+import hudson.model.queue.QueueTaskFuture;
+import hudson.slaves.SlaveComputer;
+import io.jenkins.nodes.JobNodesOnDemandConfiguration;
+import jenkins.model.Jenkins;
+import jenkins.model.ParameterizedJobMixIn.ParameterizedJob;
+
+/**
+ * Triggers the provision job to start an agent and the decommission job to stop it.
+ */
+public class JobLaunchBackend extends LaunchBackend {
+    private static final Logger LOGGER = Logger.getLogger(JobLaunchBackend.class.getName());
+
+    @DataBoundConstructor
+    public JobLaunchBackend() {
+    }
+
+    @Override
+    public void provision(final SlaveComputer computer, final JobComputerLauncher launcher) {
+        final JobNodesOnDemandConfiguration.Snapshot config = JobNodesOnDemandConfiguration.current();
+        if (config.isBatchProvisioning()) {
+            JobTriggerBatcher.get().add(launcher.getProvisionJobName(), provisionParameters(launcher), "nodes",
+                    computer.getName(), config.getBatchWindow());
+            return;
+        }
+
+        List<ParameterValue> parameters = new ArrayList<>();
+        addParam(parameters, "node", computer.getName());
+        parameters.addAll(provisionParameters(launcher));
+        final QueueTaskFuture<?> build;
+        try {
+            build = scheduleJob(launcher.getProvisionJobName(), parameters, Collections.singletonList(computer.getName()));
+        } catch (RuntimeException e) {
+            failed(computer.getName(), e);
+            return;
+        }
+        if (build == null) {
+            failed(computer.getName(), new IllegalStateException(
+                    "The agent job '" + launcher.getProvisionJobName() + "' can't be scheduled"));
+            return;
+        }
+        AgentLaunchTracker.get().provisionBuild(computer.getName(), build);
+        ProvisioningMetrics.get().scheduled(computer.getName());
+    }
+
+    /**
+     * The provision build of the agent could not be triggered, which fails its launch attempt.
+     */
+    private static void failed(String nodeName, RuntimeException cause) {
+        LOGGER.log(WARNING, "Failed to trigger the provision job for agent " + nodeName, cause);
+        AgentLaunchTracker.get().launchFailed(nodeName, cause);
+    }
+
+    static List<ParameterValue> provisionParameters(JobComputerLauncher launcher) {
+        List<ParameterValue> parameters = new ArrayList<>();
+        addParam(parameters, "label", launcher.getLabel());
+        addParam(parameters, "revision", launcher.getGitRevision());
+        addParam(parameters, "gitUrl", launcher.getGitUrl());
+        addParam(parameters, "image", launcher.getImage());
+        addParam(parameters, "gitRevision", launcher.getGitRevision());
+        return parameters;
+    }
+
+    @Override
+    public void decommission(final String nodeName, final JobComputerLauncher launcher) {
+        List<ParameterValue> parameters = new ArrayList<>();
+        addParam(parameters, "label", launcher.getLabel());
+
+        final JobNodesOnDemandConfiguration.Snapshot config = JobNodesOnDemandConfiguration.current();
+        if (config.isBatchProvisioning()) {
+            JobTriggerBatcher.get().add(launcher.getDecomissionJobName(), parameters, "agentIDs", nodeName,
+                    config.getBatchWindow());
+            return;
+        }
+
+        parameters.add(0, new StringParameterValue("agentID", nodeName));
+        scheduleJob(launcher.getDecomissionJobName(), parameters, Collections.singletonList(nodeName));
+    }
+
+    /**
+     * Schedules a build of the agent provision or decommission job.
+     *
+     * @param agents the agents the build is for
+     * @return the future of the build or {@code null} if the job can't be scheduled, e.g. because it is disabled
+     */
+    @CheckForNull
+    static QueueTaskFuture<?> scheduleJob(String jobName, List<ParameterValue> parameters, List<String> agents) {
+        ParameterizedJob job = Jenkins.get().getItemByFullName(jobName, ParameterizedJob.class);
+
+        if (job == null) {
+            throw new RuntimeException(
+                    "The agent job '" + jobName + "' of type 'ParameterizedJob.class' was not found!");
+        }
+        LOGGER.log(FINE, "Trigger job {0} for agent {1}.", new Object[] { job, agents });
+        return job.scheduleBuild2(1, new ParametersAction(parameters));
+    }
+
+    private static List<ParameterValue> addParam(List<ParameterValue> parameters, String name, String value) {
+        if (Strings.isNullOrEmpty(value)) {
+            return parameters;
+        }
+        parameters.add(new StringParameterValue(name, value));
+        return parameters;
+    }
+
+    @Extension(ordinal = 100)
+    public static class DescriptorImpl extends Descriptor<LaunchBackend> {
+        @Nonnull
+        @Override
+        public String getDisplayName() {
+            return "Trigger the provision and decommission jobs";
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package org.fr123k.jenkins.plugins.agents;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.GuardedBy;
+
+import org.kohsuke.stapler.DataBoundConstructor;
+
+import hudson.Extension;
+import hudson.model.Computer;
+import hudson.model.Descriptor;
+import hudson.model.Executor;
+import hudson.model.ExecutorListener;
+import hudson.model.Queue;
+import hudson.slaves.RetentionStrategy;
+import hudson.slaves.SlaveComputer;
+
+/**
+ * Keeps an on demand agent as long as it is busy and hands it over to the
+ * {@link IdleAgentReaper} once it was idle for longer than its idle timeout.
+ *
+ * <p>
+ * Unlike {@link RetentionStrategy.Always} an offline agent is not reconnected,
+ * the provision job triggered by the {@link JobComputerLauncher} is still running.
+ *
+ * <p>
+ * Executor events of the agent keep its idle or busy state in the {@link AgentIndex} current.
+ */
+public class JobRetentionStrategy extends RetentionStrategy<SlaveComputer> implements ExecutorListener {
+
+    private final String label;
+    private final int idleTimeout, minIdleAgents;
+
+    @DataBoundConstructor
+    public JobRetentionStrategy(final String label, final int idleTimeout, final int minIdleAgents) {
+        this.label = label;
+        this.idleTimeout = idleTimeout;
+        this.minIdleAgents = minIdleAgents;
+    }
+
+    public String getLabel() { return label; }
+
+    /** @return the idle timeout in minutes */
+    public int getIdleTimeout() { return idleTimeout; }
+
+    public int getMinIdleAgents() { return minIdleAgents; }
+
+    @Override
+    @GuardedBy("hudson.model.Queue.lock")
+    public long check(@Nonnull SlaveComputer c) {
+        final IdleAgentReaper reaper = IdleAgentReaper.get();
+        if (c.isOnline() && !c.isTemporarilyOffline()) {
+            AgentIndex.updateOnline(c);
+        }
+        if (c.isOnline() && c.isIdle() && c.isAcceptingTasks()) {
+            final long idleMillis = System.currentTimeMillis() - c.getIdleStartMilliseconds();
+            if (idleMillis > TimeUnit.MINUTES.toMillis(idleTimeout)) {
+                reaper.expired(label, c.getName(), minIdleAgents);
+            }
+        } else {
+            reaper.busy(label, c.getName());
+        }
+        return 1;
+    }
+
+    @Override
+    public void taskAccepted(Executor executor, Queue.Task task) {
+        AgentIndex.get().update(label, executor.getOwner().getName(), AgentIndex.State.BUSY);
+        ProvisioningMetrics.get().firstBuild(executor.getOwner().getName());
+        DemandForecast.get().used(executor.getOwner().getName());
+    }
+
+    @Override
+    public void taskCompleted(Executor executor, Queue.Task task, long durationMS) {
+        completed(executor);
+    }
+
+    @Override
+    public void taskCompletedWithProblems(Executor executor, Queue.Task task, long durationMS, Throwable problems) {
+        completed(executor);
+    }
+
+    private void completed(Executor executor) {
+        final Computer computer = executor.getOwner();
+        // the completing executor may still count as busy
+        if (computer.isOnline() && !computer.isTemporarilyOffline() && computer.countBusy() <= 1) {
+            AgentIndex.get().update(label, computer.getName(), AgentIndex.State.IDLE);
+        }
+    }
+
+    /**
+     * Launches the agent unless it is of the previous run, the {@link AgentJournal} decides whether it reconnects.
+     */
+    @Override
+    public void start(@Nonnull SlaveComputer c) {
+        if (!AgentJournal.get().isRecovering(c.getName())) {
+            c.connect(false);
+        }
+    }
+
+    @Extension
+    public static class DescriptorImpl extends Descriptor<RetentionStrategy<?>> {
+        @Nonnull
+        @Override
+        public String getDisplayName() {
+            return "Remove the on demand agent after an idle timeout";
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package org.fr123k.jenkins.plugins.agents;
+
+import static java.util.logging.Level.WARNING;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import hudson.model.ParameterValue;
+import hudson.model.StringParameterValue;
+import hudson.model.queue.QueueTaskFuture;
+import jenkins.util.Timer;
+
+/**
+ * Collects the agents that need the same provision or decommission job with the same
+ * parameters within a short window and triggers one build for all of them. The build gets
+ * the comma separated agent names as an additional parameter.
+ */
+final class JobTriggerBatcher {
+
+    private static final Logger LOGGER = Logger.getLogger(JobTriggerBatcher.class.getName());
+
+    static final int MAX_BATCH_SIZE = Integer.getInteger(JobTriggerBatcher.class.getName() + ".maxBatchSize", 50);
+
+    private static final JobTriggerBatcher INSTANCE = new JobTriggerBatcher();
+
+    private final ConcurrentMap<Key, Batch> batches = new ConcurrentHashMap<>();
+
+    static JobTriggerBatcher get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Adds the agent to the batch of the job and parameters. The batch is triggered after
+     * {@code windowSeconds} or as soon as it has {@link #MAX_BATCH_SIZE} agents.
+     *
+     * @param agentsParameter name of the parameter with the comma separated agent names
+     */
+    void add(String jobName, List<ParameterValue> parameters, String agentsParameter, String nodeName, int windowSeconds) {
+        final Key key = new Key(jobName, parameters, agentsParameter);
+        final Batch batch = batches.compute(key, (k, current) -> {
+            final Batch b = current == null ? new Batch() : current;
+            if (current == null) {
+                b.trigger = Timer.get().schedule(() -> trigger(k, b), Math.max(1, windowSeconds), TimeUnit.SECONDS);
+            }
+            b.nodes.add(nodeName);
+            return b;
+        });
+        if (batch.nodes.size() >= MAX_BATCH_SIZE) {
+            trigger(key, batch);
+        }
+    }
+
+    /**
+     * Removes the agent from the batches that are not triggered yet.
+     */
+    void cancel(String nodeName) {
+        for (Key key : batches.keySet()) {
+            batches.computeIfPresent(key, (k, b) -> {
+                if (b.nodes.remove(nodeName) && b.nodes.isEmpty()) {
+                    b.trigger.cancel(false);
+                    return null;
+                }
+                return b;
+            });
+        }
+    }
+
+    private void trigger(Key key, Batch batch) {
+        if (!batches.remove(key, batch)) {
+            return;
+        }
+        batch.trigger.cancel(false);
+
+        final List<String> nodes = batch.nodes;
+        final List<ParameterValue> parameters = new ArrayList<>(key.parameters);
+        parameters.add(0, new StringParameterValue(key.agentsParameter, String.join(",", nodes)));
+        final QueueTaskFuture<?> build;
+        try {
+            build = JobLaunchBackend.scheduleJob(key.jobName, parameters, nodes);
+        } catch (RuntimeException e) {
+            failed(key, nodes, e);
+            return;
+        }
+        if (build == null) {
+            failed(key, nodes, new IllegalStateException("The agent job '" + key.jobName + "' can't be scheduled"));
+            return;
+        }
+        if (isProvision(key)) {
+            for (String nodeName : nodes) {
+                AgentLaunchTracker.get().provisionBuild(nodeName, build);
+                ProvisioningMetrics.get().scheduled(nodeName);
+            }
+        }
+    }
+
+    /**
+     * Fails the launch of the agents if the provision build could not be triggered, so they are
+     * launched again or removed without waiting for the launch timeout.
+     */
+    private static void failed(Key key, List<String> nodes, RuntimeException cause) {
+        LOGGER.log(WARNING, "Failed to trigger job " + key.jobName + " for agents " + nodes, cause);
+        if (isProvision(key)) {
+            AgentLaunchTracker.get().launchesFailed(nodes, cause);
+        }
+    }
+
+    private static boolean isProvision(Key key) {
+        return "nodes".equals(key.agentsParameter);
+    }
+
+    private static final class Batch {
+        final List<String> nodes = new ArrayList<>();
+        ScheduledFuture<?> trigger;
+    }
+
+    private static final class Key {
+        final String jobName, agentsParameter;
+        final List<ParameterValue> parameters;
+        private final List<String> values = new ArrayList<>();
+
+        Key(String jobName, List<ParameterValue> parameters, String agentsParameter) {
+            this.jobName = jobName;
+            this.parameters = parameters;
+            this.agentsParameter = agentsParameter;
+            for (ParameterValue parameter : parameters) {
+                values.add(parameter.getName() + '=' + parameter.getValue());
+            }
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            final Key key = (Key) o;
+            return Objects.equals(jobName, key.jobName) && agentsParameter.equals(key.agentsParameter)
+                    && values.equals(key.values);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(jobName, agentsParameter, values);
+        }
+    }
+}
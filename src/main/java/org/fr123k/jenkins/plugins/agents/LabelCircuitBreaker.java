@@ -0,0 +1,168 @@
+package org.fr123k.jenkins.plugins.agents;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.jenkins.nodes.JobNodesOnDemandConfiguration;
+import net.sf.json.JSONObject;
+
+/**
+ * Stops the provisioning of a label whose agents keep failing to launch, e.g. because of a broken image.
+ *
+ * <p>
+ * After {@code breakerThreshold} launch failures in a row the breaker of the label opens and no
+ * agents are provisioned for the backoff time. Then it is half open and a single agent is
+ * provisioned as a probe. If the probe comes online the breaker closes, otherwise it opens again
+ * with the backoff doubled, up to {@link #MAX_BACKOFF_SECONDS}.
+ */
+public final class LabelCircuitBreaker {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(LabelCircuitBreaker.class);
+
+    static final long MAX_BACKOFF_SECONDS = Long.getLong(LabelCircuitBreaker.class.getName() + ".maxBackoffSeconds", 1800);
+
+    public enum State {
+        /** Agents are provisioned as needed. */
+        CLOSED,
+        /** No agents are provisioned until the backoff time is over. */
+        OPEN,
+        /** A single agent is provisioned to probe whether the launches work again. */
+        HALF_OPEN
+    }
+
+    private static final LabelCircuitBreaker INSTANCE = new LabelCircuitBreaker();
+
+    private final ConcurrentMap<String, Breaker> breakers = new ConcurrentHashMap<>();
+
+    public static LabelCircuitBreaker get() {
+        return INSTANCE;
+    }
+
+    /**
+     * @return how many of the {@code wanted} agents the label may provision, 0 while the breaker is open
+     *         and 1 for the probe when it is half open
+     */
+    public int allow(String label, int wanted) {
+        if (!breakers.containsKey(label)) {
+            return wanted;
+        }
+        final JobNodesOnDemandConfiguration.Snapshot config = JobNodesOnDemandConfiguration.current();
+        return allow(label, wanted, TimeUnit.SECONDS.toMillis(
+                (long) config.getLaunchTimeout() * (config.getLaunchRetries() + 1)), System.currentTimeMillis());
+    }
+
+    /**
+     * @param probeMillis how long the probe may take to come online before another one is allowed
+     */
+    int allow(String label, int wanted, long probeMillis, long now) {
+        final Breaker breaker = breakers.get(label);
+        if (breaker == null) {
+            return wanted;
+        }
+        synchronized (breaker) {
+            switch (breaker.state(now)) {
+            case OPEN:
+                return 0;
+            case HALF_OPEN:
+                if (breaker.probeUntil > now) {
+                    return 0;
+                }
+                breaker.probeUntil = now + probeMillis;
+                return Math.min(wanted, 1);
+            default:
+                return wanted;
+            }
+        }
+    }
+
+    /**
+     * The probe allowed by {@link #allow(String, int)} was not provisioned after all.
+     */
+    public void notProvisioned(String label) {
+        final Breaker breaker = breakers.get(label);
+        if (breaker != null) {
+            synchronized (breaker) {
+                breaker.probeUntil = 0;
+            }
+        }
+    }
+
+    /** An agent of the label came online. */
+    void succeeded(String label) {
+        final Breaker breaker = breakers.remove(label);
+        if (breaker != null && breaker.openings > 0) {
+            LOGGER.info("Agents of label {} launch again, closing the circuit breaker", label);
+        }
+    }
+
+    /** A launch of an agent of the label failed. */
+    void failed(String label) {
+        final JobNodesOnDemandConfiguration.Snapshot config = JobNodesOnDemandConfiguration.current();
+        failed(label, config.getBreakerThreshold(), config.getBreakerBackoff(), System.currentTimeMillis());
+    }
+
+    /**
+     * @param threshold the failures in a row that open the breaker, 0 to never open it
+     * @param backoffSeconds how long the breaker stays open the first time
+     */
+    void failed(String label, int threshold, int backoffSeconds, long now) {
+        if (threshold <= 0) {
+            return;
+        }
+        final Breaker breaker = breakers.computeIfAbsent(label, k -> new Breaker());
+        synchronized (breaker) {
+            final State state = breaker.state(now);
+            breaker.failures++;
+            if (state == State.HALF_OPEN || (state == State.CLOSED && breaker.failures >= threshold)) {
+                final long backoff = Math.min(MAX_BACKOFF_SECONDS,
+                        (long) Math.max(1, backoffSeconds) << Math.min(breaker.openings, 20));
+                breaker.openings++;
+                breaker.openUntil = now + TimeUnit.SECONDS.toMillis(backoff);
+                breaker.probeUntil = 0;
+                LOGGER.warn("{} launch failure(s) of label {} in a row, no agents are provisioned for {} seconds",
+                        breaker.failures, label, backoff);
+            }
+        }
+    }
+
+    /** @return the state of the breaker of the label */
+    public State getState(String label) {
+        return getState(label, System.currentTimeMillis());
+    }
+
+    State getState(String label, long now) {
+        final Breaker breaker = breakers.get(label);
+        return breaker == null ? State.CLOSED : breaker.state(now);
+    }
+
+    /** @return the launch failures of the label since its last agent came online */
+    public int getFailures(String label) {
+        final Breaker breaker = breakers.get(label);
+        return breaker == null ? 0 : breaker.failures;
+    }
+
+    JSONObject toJSON(String label) {
+        final Breaker breaker = breakers.get(label);
+        final JSONObject json = new JSONObject();
+        json.put("state", getState(label).name().toLowerCase());
+        json.put("failures", breaker == null ? 0 : breaker.failures);
+        json.put("openUntil", breaker == null ? 0 : breaker.openUntil);
+        return json;
+    }
+
+    private static final class Breaker {
+        volatile int failures, openings;
+        volatile long openUntil, probeUntil;
+
+        State state(long now) {
+            if (openings == 0) {
+                return State.CLOSED;
+            }
+            return now < openUntil ? State.OPEN : State.HALF_OPEN;
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package org.fr123k.jenkins.plugins.agents;
+
+import hudson.ExtensionList;
+import hudson.ExtensionPoint;
+import hudson.model.AbstractDescribableImpl;
+import hudson.model.Descriptor;
+import hudson.slaves.SlaveComputer;
+import jenkins.model.Jenkins;
+
+/**
+ * Starts and stops the agents of a {@link JobComputerLauncher}. The default
+ * {@link JobLaunchBackend} triggers the configured provision and decommission jobs,
+ * other backends can start the agent without going through the build queue.
+ *
+ * <p>
+ * A backend gets the agent parameters from the launcher, see {@link JobComputerLauncher#getLabel()},
+ * {@link JobComputerLauncher#getImage()}, {@link JobComputerLauncher#getGitUrl()} and
+ * {@link JobComputerLauncher#getGitRevision()}. It must not block the calling thread.
+ */
+public abstract class LaunchBackend extends AbstractDescribableImpl<LaunchBackend> implements ExtensionPoint {
+
+    /**
+     * Starts the agent for the computer. The agent connects as an inbound agent.
+     */
+    public abstract void provision(SlaveComputer computer, JobComputerLauncher launcher);
+
+    /**
+     * Stops the agent after it is disconnected or removed.
+     */
+    public abstract void decommission(String nodeName, JobComputerLauncher launcher);
+
+    public static ExtensionList<Descriptor<LaunchBackend>> all() {
+        return Jenkins.get().getDescriptorList(LaunchBackend.class);
+    }
+}
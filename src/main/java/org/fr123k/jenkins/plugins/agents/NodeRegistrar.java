@@ -0,0 +1,122 @@
+package org.fr123k.jenkins.plugins.agents;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import hudson.model.Node;
+import hudson.model.Slave;
+import jenkins.model.Jenkins;
+import jenkins.util.Timer;
+
+/**
+ * Registration stage of the agent provisioning. Moves the {@code addNode} calls off the
+ * provisioning threads: the agents created within a short window are added to Jenkins from a
+ * single timer task. This is not a bulk registration, every agent is still added on its own,
+ * with its own queue lock, computer update and {@code config.xml} write. Core has no API to add
+ * several nodes at once: {@code setNodes} replaces and saves the whole node list and does not
+ * notify the node listeners.
+ *
+ * <p>
+ * Core's {@code Nodes.addNode} has a race whereby the node instance is updated or removed
+ * after the lock release, which makes adding a node fail at random when many nodes are
+ * added. Agents that failed are added again by the next timer task instead of sleeping on
+ * the calling thread. An agent whose name is already taken by another node is rejected
+ * rather than replacing that node.
+ *
+ * @see <a href=
+ *      "https://github.com/jenkinsci/jenkins/blob/d2276c3c9b16fd46a3912ab8d58c418e67d8ce3e/core/src/main/java/jenkins/model/Nodes.java#L141">
+ *      Nodes.java</a>
+ */
+public final class NodeRegistrar {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(NodeRegistrar.class);
+
+    static final long WINDOW_MILLIS = Long.getLong(NodeRegistrar.class.getName() + ".windowMillis", 100);
+    static final int MAX_BATCH_SIZE = Integer.getInteger(NodeRegistrar.class.getName() + ".maxBatchSize", 100);
+    static final int MAX_ATTEMPTS = 3;
+
+    private static final NodeRegistrar INSTANCE = new NodeRegistrar();
+
+    private final ConcurrentLinkedQueue<Registration> pending = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+
+    public static NodeRegistrar get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Adds the agent to Jenkins from the next timer task. A failed registration fails the
+     * launch of the agent in the {@link AgentLaunchTracker}.
+     */
+    void register(final Slave node) {
+        enqueue(new Registration(node));
+    }
+
+    private void enqueue(final Registration registration) {
+        pending.add(registration);
+        if (scheduled.compareAndSet(false, true)) {
+            Timer.get().schedule(this::flush, WINDOW_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void flush() {
+        scheduled.set(false);
+        final List<Registration> batch = new ArrayList<>();
+        Registration registration;
+        while (batch.size() < MAX_BATCH_SIZE && (registration = pending.poll()) != null) {
+            batch.add(registration);
+        }
+        if (!pending.isEmpty() && scheduled.compareAndSet(false, true)) {
+            Timer.get().submit(this::flush);
+        }
+        if (batch.isEmpty()) {
+            return;
+        }
+
+        final List<Registration> failed = new ArrayList<>();
+        final Jenkins jenkins = Jenkins.get();
+        for (Registration r : batch) {
+            final String nodeName = r.node.getNodeName();
+            final Node existing = jenkins.getNode(nodeName);
+            if (existing != null && existing != r.node) {
+                AgentLaunchTracker.get().fail(nodeName,
+                        new IllegalStateException("A node with the name " + nodeName + " already exists"));
+                continue;
+            }
+            try {
+                jenkins.addNode(r.node);
+                ProvisioningMetrics.get().created(nodeName);
+            } catch (IOException | RuntimeException e) {
+                r.lastFailure = e;
+                failed.add(r);
+            }
+        }
+        LOGGER.debug("Registered {} agent(s), {} failed", batch.size() - failed.size(), failed.size());
+
+        for (Registration r : failed) {
+            if (++r.attempts < MAX_ATTEMPTS) {
+                enqueue(r);
+            } else {
+                LOGGER.error("Failed to add agent {} after {} attempts", r.node.getNodeName(), r.attempts, r.lastFailure);
+                AgentLaunchTracker.get().fail(r.node.getNodeName(), r.lastFailure);
+            }
+        }
+    }
+
+    private static final class Registration {
+        final Slave node;
+        int attempts;
+        Exception lastFailure;
+
+        Registration(Slave node) {
+            this.node = node;
+        }
+    }
+}
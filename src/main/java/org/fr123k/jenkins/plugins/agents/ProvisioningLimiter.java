@@ -0,0 +1,252 @@
+package org.fr123k.jenkins.plugins.agents;
+
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.jenkins.nodes.AgentTemplate;
+import io.jenkins.nodes.JobNodesOnDemandConfiguration;
+
+/**
+ * Caps the agents the strategy provisions.
+ *
+ * <p>
+ * Every label is limited by the agents it has and the agents it has in flight, that is launched
+ * but not online yet. On top of that the global limits and a token bucket on the launches apply.
+ * As long as the global capacity covers the demand of all waiting labels, every label gets what
+ * it asks for. Otherwise each waiting label gets a share of the capacity in proportion to how
+ * long it has been waiting, and the longest waiting label gets at least one agent.
+ */
+public final class ProvisioningLimiter {
+
+    /** A label that did not ask again within this time is no longer waiting. */
+    private static final long STALE_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+    private static final ProvisioningLimiter INSTANCE = new ProvisioningLimiter();
+
+    private final ConcurrentMap<String, AtomicInteger> inFlight = new ConcurrentHashMap<>();
+    private final AtomicInteger inFlightTotal = new AtomicInteger();
+    /** Labels whose demand was not fully granted. */
+    private final ConcurrentMap<String, Waiting> waiting = new ConcurrentHashMap<>();
+
+    // token bucket of the launches, guarded by this
+    private double tokens = -1;
+    private long refilledAt;
+
+    public static ProvisioningLimiter get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Grants up to {@code wanted} agents of the label and counts them as in flight. Every granted
+     * agent has to be either {@link #track(String, Future) tracked} or returned as {@link #unused(String, int) unused}.
+     *
+     * @return the number of agents the label may provision now
+     */
+    public int acquire(JobNodesOnDemandConfiguration.Snapshot config, AgentTemplate.Resolved template,
+            String label, int wanted) {
+        return acquire(Limits.of(config, template), label, wanted, System.currentTimeMillis());
+    }
+
+    synchronized int acquire(Limits limits, String label, int wanted, long now) {
+        final int labelInFlight = getInFlight(label);
+        final int perLabel = Math.min(wanted, Math.min(
+                headroom(limits.labelMaxInFlight, labelInFlight),
+                headroom(limits.labelMaxAgents, total(label, labelInFlight))));
+        if (perLabel <= 0) {
+            // capped by its own limits, the label must not hold back the others
+            waiting.remove(label);
+            return 0;
+        }
+
+        final int global = Math.min(tokens(limits, now), Math.min(
+                headroom(limits.maxInFlight, inFlightTotal.get()),
+                headroom(limits.maxAgents, totalAll())));
+
+        Waiting own = waiting.get(label);
+        if (own == null) {
+            final long since = ProvisioningMetrics.get().label(label).getWaitingSince();
+            own = new Waiting(since > 0 ? since : now);
+            waiting.put(label, own);
+        }
+        own.wanted = perLabel;
+        own.askedAt = now;
+
+        int demand = 0;
+        long weights = 0;
+        Waiting oldest = own;
+        for (Iterator<Waiting> it = waiting.values().iterator(); it.hasNext();) {
+            final Waiting w = it.next();
+            if (now - w.askedAt > STALE_MILLIS) {
+                it.remove();
+                continue;
+            }
+            demand += w.wanted;
+            weights += w.weight(now);
+            if (w.since < oldest.since) {
+                oldest = w;
+            }
+        }
+
+        int granted = perLabel;
+        if (demand > global) {
+            final int share = (int) (global * own.weight(now) / weights);
+            granted = Math.min(perLabel, share == 0 && own == oldest ? 1 : share);
+        }
+        granted = Math.max(0, Math.min(granted, global));
+
+        if (granted >= perLabel) {
+            waiting.remove(label);
+        } else {
+            own.wanted = perLabel - granted;
+        }
+        if (granted > 0) {
+            if (limits.launchesPerMinute > 0) {
+                tokens -= granted;
+            }
+            inFlight.computeIfAbsent(label, k -> new AtomicInteger()).addAndGet(granted);
+            inFlightTotal.addAndGet(granted);
+        }
+        return granted;
+    }
+
+    /**
+     * The label has no demand left.
+     */
+    public void satisfied(String label) {
+        waiting.remove(label);
+    }
+
+    /**
+     * Keeps the granted agent in flight until it is online or failed.
+     */
+    public void track(String label, Future<?> future) {
+        if (future instanceof CompletableFuture) {
+            ((CompletableFuture<?>) future).whenComplete((node, t) -> release(label, 1));
+        } else {
+            release(label, 1);
+        }
+    }
+
+    /**
+     * Returns granted agents that were not provisioned, together with their launches of the token bucket.
+     */
+    public synchronized void unused(String label, int agents) {
+        if (agents > 0 && tokens >= 0) {
+            tokens += agents;
+        }
+        release(label, agents);
+    }
+
+    /**
+     * Returns granted agents that are not in flight anymore.
+     */
+    public void release(String label, int agents) {
+        if (agents <= 0) {
+            return;
+        }
+        inFlight.computeIfPresent(label, (k, count) -> count.addAndGet(-agents) <= 0 ? null : count);
+        inFlightTotal.addAndGet(-agents);
+    }
+
+    /** @return the granted agents of the label that are not online yet */
+    public int getInFlight(String label) {
+        final AtomicInteger count = inFlight.get(label);
+        return count == null ? 0 : count.get();
+    }
+
+    /** @return the granted agents of all labels that are not online yet */
+    public int getInFlight() {
+        return inFlightTotal.get();
+    }
+
+    /** @return whether the label asked for agents that were not granted */
+    public boolean isWaiting(String label) {
+        return waiting.containsKey(label);
+    }
+
+    /**
+     * Agents of the label including the ones in flight. Agents which are added but were not granted
+     * here, e.g. after a restart, are counted by the {@link AgentIndex}.
+     */
+    private static int total(String label, int labelInFlight) {
+        final AgentIndex index = AgentIndex.get();
+        return index.count(label, AgentIndex.State.IDLE)
+                + index.count(label, AgentIndex.State.BUSY)
+                + index.count(label, AgentIndex.State.DRAINING)
+                + index.count(label, AgentIndex.State.DISCONNECTED)
+                + Math.max(labelInFlight, index.count(label, AgentIndex.State.PROVISIONING));
+    }
+
+    private int totalAll() {
+        final AgentIndex index = AgentIndex.get();
+        return index.count(AgentIndex.State.IDLE)
+                + index.count(AgentIndex.State.BUSY)
+                + index.count(AgentIndex.State.DRAINING)
+                + index.count(AgentIndex.State.DISCONNECTED)
+                + Math.max(inFlightTotal.get(), index.count(AgentIndex.State.PROVISIONING));
+    }
+
+    private static int headroom(int limit, int used) {
+        return limit <= 0 ? Integer.MAX_VALUE : Math.max(0, limit - used);
+    }
+
+    /**
+     * Refills the bucket with the configured launches per minute, up to a burst of the agents per tick.
+     */
+    private int tokens(Limits limits, long now) {
+        final int rate = limits.launchesPerMinute;
+        if (rate <= 0) {
+            return Integer.MAX_VALUE;
+        }
+        if (tokens < 0) {
+            tokens = limits.burst;
+        } else {
+            tokens = Math.min(limits.burst, tokens + (now - refilledAt) * rate / (double) TimeUnit.MINUTES.toMillis(1));
+        }
+        refilledAt = now;
+        return (int) tokens;
+    }
+
+    /**
+     * The limits of an acquisition, 0 for no limit.
+     */
+    static final class Limits {
+        final int maxAgents, maxInFlight;
+        final int labelMaxAgents, labelMaxInFlight;
+        final int launchesPerMinute, burst;
+
+        Limits(int maxAgents, int maxInFlight, int labelMaxAgents, int labelMaxInFlight,
+                int launchesPerMinute, int burst) {
+            this.maxAgents = maxAgents;
+            this.maxInFlight = maxInFlight;
+            this.labelMaxAgents = labelMaxAgents;
+            this.labelMaxInFlight = labelMaxInFlight;
+            this.launchesPerMinute = launchesPerMinute;
+            this.burst = Math.max(1, burst);
+        }
+
+        static Limits of(JobNodesOnDemandConfiguration.Snapshot config, AgentTemplate.Resolved template) {
+            return new Limits(config.getMaxAgents(), config.getMaxInFlight(), template.getMaxAgents(),
+                    template.getMaxInFlight(), config.getLaunchesPerMinute(), config.getMaxAgentsPerTick());
+        }
+    }
+
+    private static final class Waiting {
+        final long since;
+        volatile int wanted;
+        volatile long askedAt;
+
+        Waiting(long since) {
+            this.since = since;
+        }
+
+        long weight(long now) {
+            return Math.max(1, now - since);
+        }
+    }
+}
@@ -0,0 +1,393 @@
+package org.fr123k.jenkins.plugins.agents;
+
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+import hudson.Extension;
+import hudson.model.Computer;
+import hudson.model.ParameterValue;
+import hudson.model.ParametersAction;
+import hudson.model.PeriodicWork;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.model.listeners.RunListener;
+import hudson.slaves.ComputerListener;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+
+/**
+ * Per label latency histograms and counters of the agent provisioning.
+ *
+ * <p>
+ * Every agent gets a timeline when the strategy decides to provision it. Each later stage
+ * records the time since the previous stage of the same agent into the histogram of the
+ * stage. Recording only touches atomic counters, so it stays enabled under load.
+ *
+ * <p>
+ * The metrics of a label are dropped once it has no agents and nothing was recorded for it
+ * within {@link #RETENTION_MILLIS}, so labels that are not used anymore do not pile up.
+ */
+public final class ProvisioningMetrics {
+
+    public enum Stage {
+        /** An item of the label entered buildable until the strategy decided to provision. */
+        WAITING,
+        /** The decision until the node was added to Jenkins. */
+        CREATED,
+        /** The node was added until its provision build or command was scheduled. */
+        SCHEDULED,
+        /** The provision build or command was scheduled until it started. */
+        STARTED,
+        /** The provision build or command started until the agent was online. */
+        ONLINE,
+        /** The decision until the agent was online. */
+        TOTAL,
+        /** The agent was online until it accepted its first task. */
+        FIRST_BUILD,
+        /** The agent was online until it was decommissioned. */
+        LIFETIME
+    }
+
+    static final int MAX_TRACKED_AGENTS = Integer.getInteger(ProvisioningMetrics.class.getName() + ".maxTrackedAgents", 10000);
+    static final long RETENTION_MILLIS = TimeUnit.MINUTES.toMillis(
+            Long.getLong(ProvisioningMetrics.class.getName() + ".retentionMinutes", 60));
+
+    /** The metrics of a label nothing was recorded for. */
+    private static final LabelMetrics NONE = new LabelMetrics();
+
+    private static final ProvisioningMetrics INSTANCE = new ProvisioningMetrics();
+
+    private final ConcurrentMap<String, LabelMetrics> labels = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Timeline> agents = new ConcurrentHashMap<>();
+
+    public static ProvisioningMetrics get() {
+        return INSTANCE;
+    }
+
+    /** @return the metrics of the label to record into */
+    public LabelMetrics label(String label) {
+        final LabelMetrics metrics = labels.computeIfAbsent(label, k -> new LabelMetrics());
+        metrics.updatedAt = System.currentTimeMillis();
+        return metrics;
+    }
+
+    /** @return the metrics of the label to show, which does not keep the label from being dropped */
+    LabelMetrics peek(String label) {
+        final LabelMetrics metrics = labels.get(label);
+        return metrics == null ? NONE : metrics;
+    }
+
+    /** @return the labels with recorded metrics */
+    public Set<String> labels() {
+        return Collections.unmodifiableSet(labels.keySet());
+    }
+
+    /** An item of the label entered the buildable state. */
+    public void buildable(String label) {
+        label(label).waitingSince.compareAndSet(0, System.currentTimeMillis());
+    }
+
+    /** The strategy decided to provision the agent. */
+    public void decided(String label, String nodeName) {
+        final LabelMetrics metrics = label(label);
+        final long now = System.currentTimeMillis();
+        final long waitingSince = metrics.waitingSince.getAndSet(0);
+        if (waitingSince > 0) {
+            metrics.record(Stage.WAITING, now - waitingSince);
+        }
+        if (agents.size() < MAX_TRACKED_AGENTS) {
+            agents.put(nodeName, new Timeline(label, now));
+        }
+    }
+
+    public void created(String nodeName) {
+        stage(nodeName, Stage.CREATED);
+    }
+
+    public void scheduled(String nodeName) {
+        stage(nodeName, Stage.SCHEDULED);
+    }
+
+    public void started(String nodeName) {
+        stage(nodeName, Stage.STARTED);
+    }
+
+    public void online(String nodeName) {
+        final Timeline timeline = agents.get(nodeName);
+        if (timeline != null && timeline.online.compareAndSet(false, true)) {
+            final long now = System.currentTimeMillis();
+            final LabelMetrics metrics = label(timeline.label);
+            metrics.record(Stage.ONLINE, now - timeline.last);
+            metrics.record(Stage.TOTAL, now - timeline.decided);
+            metrics.provisioned.increment();
+            timeline.onlineAt = now;
+            timeline.last = now;
+        }
+    }
+
+    public void firstBuild(String nodeName) {
+        final Timeline timeline = agents.get(nodeName);
+        if (timeline != null && timeline.onlineAt > 0 && timeline.firstBuild.compareAndSet(false, true)) {
+            label(timeline.label).record(Stage.FIRST_BUILD, System.currentTimeMillis() - timeline.onlineAt);
+        }
+    }
+
+    /** The agent failed to launch. */
+    public void failed(String nodeName) {
+        final Timeline timeline = agents.remove(nodeName);
+        if (timeline != null) {
+            label(timeline.label).failed.increment();
+        }
+    }
+
+    /** The launch of the agent was cancelled because nobody needs it anymore. */
+    public void cancelled(String nodeName) {
+        final Timeline timeline = agents.remove(nodeName);
+        if (timeline != null) {
+            label(timeline.label).cancelled.increment();
+        }
+    }
+
+    /** The idle agent was reclaimed. */
+    public void reclaimed(String label) {
+        label(label).reclaimed.increment();
+    }
+
+    public void decommissioned(String nodeName) {
+        final Timeline timeline = agents.remove(nodeName);
+        if (timeline != null && timeline.onlineAt > 0) {
+            label(timeline.label).record(Stage.LIFETIME, System.currentTimeMillis() - timeline.onlineAt);
+        }
+    }
+
+    private void stage(String nodeName, Stage stage) {
+        final Timeline timeline = agents.get(nodeName);
+        if (timeline != null) {
+            final long now = System.currentTimeMillis();
+            label(timeline.label).record(stage, now - timeline.last);
+            timeline.last = now;
+        }
+    }
+
+    /**
+     * Drops the metrics of the labels without agents, launches or waiting items that were not updated
+     * within {@link #RETENTION_MILLIS}.
+     */
+    void prune(long now) {
+        final Set<String> launching = new HashSet<>();
+        for (Timeline timeline : agents.values()) {
+            launching.add(timeline.label);
+        }
+        final Set<String> indexed = AgentIndex.get().labels();
+        labels.entrySet().removeIf(entry -> now - entry.getValue().updatedAt > RETENTION_MILLIS
+                && entry.getValue().waitingSince.get() == 0
+                && !indexed.contains(entry.getKey())
+                && !launching.contains(entry.getKey()));
+    }
+
+    /** @return the metrics of all labels */
+    public JSONObject toJSON() {
+        final JSONObject json = new JSONObject();
+        for (Map.Entry<String, LabelMetrics> entry : labels.entrySet()) {
+            json.put(entry.getKey(), entry.getValue().toJSON());
+        }
+        return json;
+    }
+
+    private static final class Timeline {
+        final String label;
+        final long decided;
+        volatile long last, onlineAt;
+        final AtomicBoolean online = new AtomicBoolean(), firstBuild = new AtomicBoolean();
+
+        Timeline(String label, long decided) {
+            this.label = label;
+            this.decided = decided;
+            this.last = decided;
+        }
+    }
+
+    public static final class LabelMetrics {
+        private final Map<Stage, Histogram> histograms = new EnumMap<>(Stage.class);
+        private final LongAdder provisioned = new LongAdder(), failed = new LongAdder(), reclaimed = new LongAdder();
+        private final LongAdder cancelled = new LongAdder();
+        final LongAdder forecast = new LongAdder(), forecastUsed = new LongAdder(), forecastUnused = new LongAdder();
+        private final AtomicLong waitingSince = new AtomicLong();
+        private volatile long updatedAt;
+
+        LabelMetrics() {
+            for (Stage stage : Stage.values()) {
+                histograms.put(stage, new Histogram());
+            }
+        }
+
+        void record(Stage stage, long millis) {
+            histograms.get(stage).record(millis);
+        }
+
+        public Histogram getHistogram(Stage stage) { return histograms.get(stage); }
+        public long getProvisioned() { return provisioned.sum(); }
+        public long getFailed() { return failed.sum(); }
+        public long getReclaimed() { return reclaimed.sum(); }
+        public long getCancelled() { return cancelled.sum(); }
+        /** @return when the oldest item of the label not yet served by a decision became buildable or 0 */
+        public long getWaitingSince() { return waitingSince.get(); }
+        /** @return the agents provisioned ahead of demand */
+        public long getForecast() { return forecast.sum(); }
+        public long getForecastUsed() { return forecastUsed.sum(); }
+        public long getForecastUnused() { return forecastUnused.sum(); }
+
+        JSONObject toJSON() {
+            final JSONObject json = new JSONObject();
+            json.put("provisioned", getProvisioned());
+            json.put("failed", getFailed());
+            json.put("reclaimed", getReclaimed());
+            json.put("cancelled", getCancelled());
+            json.put("forecast", getForecast());
+            json.put("forecastUsed", getForecastUsed());
+            json.put("forecastUnused", getForecastUnused());
+            final JSONObject latencies = new JSONObject();
+            for (Map.Entry<Stage, Histogram> entry : histograms.entrySet()) {
+                latencies.put(entry.getKey().name().toLowerCase(), entry.getValue().toJSON());
+            }
+            json.put("latencies", latencies);
+            return json;
+        }
+    }
+
+    /**
+     * Latency histogram with fixed, roughly logarithmic buckets in milliseconds.
+     */
+    public static final class Histogram {
+        static final long[] BOUNDS = { 100, 250, 500, 1000, 2500, 5000, 10000, 30000, 60000, 120000, 300000, 600000, 1800000 };
+
+        private final AtomicLongArray buckets = new AtomicLongArray(BOUNDS.length + 1);
+        private final LongAdder count = new LongAdder(), sum = new LongAdder();
+
+        void record(long millis) {
+            int bucket = 0;
+            while (bucket < BOUNDS.length && millis > BOUNDS[bucket]) {
+                bucket++;
+            }
+            buckets.incrementAndGet(bucket);
+            count.increment();
+            sum.add(Math.max(0, millis));
+        }
+
+        public long getCount() { return count.sum(); }
+
+        /** @return the mean latency in milliseconds */
+        public long getMean() {
+            final long n = count.sum();
+            return n == 0 ? 0 : sum.sum() / n;
+        }
+
+        /**
+         * @return the upper bound of the bucket containing the percentile, or -1 for the overflow bucket
+         */
+        public long getPercentile(double percentile) {
+            final long n = count.sum();
+            if (n == 0) {
+                return 0;
+            }
+            final long rank = (long) Math.ceil(n * percentile / 100);
+            long seen = 0;
+            for (int bucket = 0; bucket < buckets.length(); bucket++) {
+                seen += buckets.get(bucket);
+                if (seen >= rank) {
+                    return bucket < BOUNDS.length ? BOUNDS[bucket] : -1;
+                }
+            }
+            return -1;
+        }
+
+        JSONObject toJSON() {
+            final JSONObject json = new JSONObject();
+            json.put("count", getCount());
+            json.put("mean", getMean());
+            json.put("p50", getPercentile(50));
+            json.put("p95", getPercentile(95));
+            final JSONArray counts = new JSONArray();
+            for (int bucket = 0; bucket < buckets.length(); bucket++) {
+                counts.add(buckets.get(bucket));
+            }
+            json.put("buckets", counts);
+            return json;
+        }
+    }
+
+    /**
+     * Records when the provision builds of the agents start.
+     */
+    @Extension
+    public static class ProvisionBuildListener extends RunListener<Run<?, ?>> {
+        @Override
+        public void onStarted(Run<?, ?> run, TaskListener listener) {
+            for (String nodeName : agentsOf(run)) {
+                get().started(nodeName);
+            }
+        }
+    }
+
+    /**
+     * @return the agents a provision build is for, from its {@code node} or {@code nodes} parameter
+     */
+    static Set<String> agentsOf(@CheckForNull Run<?, ?> run) {
+        final ParametersAction parameters = run == null ? null : run.getAction(ParametersAction.class);
+        if (parameters == null) {
+            return Collections.emptySet();
+        }
+        ParameterValue value = parameters.getParameter("node");
+        if (value == null) {
+            value = parameters.getParameter("nodes");
+        }
+        if (value == null || !(value.getValue() instanceof String)) {
+            return Collections.emptySet();
+        }
+        final Set<String> nodes = new LinkedHashSet<>();
+        for (String nodeName : ((String) value.getValue()).split(",")) {
+            if (!nodeName.trim().isEmpty()) {
+                nodes.add(nodeName.trim());
+            }
+        }
+        return nodes;
+    }
+
+    /**
+     * Drops the metrics of the labels that are not used anymore.
+     */
+    @Extension
+    public static class Pruner extends PeriodicWork {
+        @Override
+        public long getRecurrencePeriod() {
+            return TimeUnit.MINUTES.toMillis(10);
+        }
+
+        @Override
+        protected void doRun() {
+            get().prune(System.currentTimeMillis());
+        }
+    }
+
+    @Extension
+    public static class OnlineListener extends ComputerListener {
+        @Override
+        public void onOnline(@Nonnull Computer c, TaskListener listener) {
+            get().online(c.getName());
+        }
+    }
+}
@@ -31,6 +31,7 @@ public class JobNodesOnDemandConfigurationTest {
             textbox.setText("hello");
             r.submit(htmlForm);
             assertEquals("global config page let us edit it", "hello", config.getGitUrl());
+            assertEquals("submit published a new snapshot", "hello", JobNodesOnDemandConfiguration.current().getGitUrl());
         });
         rr.then(r -> {
             assertEquals("still there after restart of Jenkins", "hello", config.getGitUrl());
@@ -0,0 +1,111 @@
+package io.jenkins.nodes;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import org.fr123k.jenkins.plugins.agents.SyntheticAgents;
+import org.junit.Test;
+
+import hudson.BulkChange;
+import hudson.model.labels.LabelAtom;
+import hudson.slaves.NodeProvisioner;
+
+public class JobNodesOnDemandStrategyTest {
+
+    @Test
+    public void capacityCountsEveryExecutorOnTheWay() {
+        final String[] labels = {"strategy-capacity"};
+        // 2 of the 8 agents are provisioning without a planned node
+        SyntheticAgents.populate(labels, 8);
+        try {
+            final NodeProvisioner.StrategyState state = SyntheticStrategyState.of(new LabelAtom(labels[0]), 1, 2, 0, 3);
+            state.setAdditionalPlannedCapacity(4);
+            final int unplanned = JobNodesOnDemandStrategy.unplannedCapacity(labels[0], 2);
+            assertEquals(4, unplanned);
+            assertEquals("available, connecting, planned, additional planned and unplanned",
+                    1 + 2 + 3 + 4 + 4, JobNodesOnDemandStrategy.availableCapacity(state, unplanned));
+        } finally {
+            SyntheticAgents.clear(labels, 8);
+        }
+    }
+
+    @Test
+    public void agentsCoverTheShortfall() {
+        final JobNodesOnDemandConfiguration.Snapshot config = config(c -> c.setMaxAgentsPerTick(10));
+        assertEquals(0, JobNodesOnDemandStrategy.agentsToProvision(config, 2, 5, 5));
+        assertEquals(0, JobNodesOnDemandStrategy.agentsToProvision(config, 2, 6, 5));
+        assertEquals("rounded up to whole agents", 1, JobNodesOnDemandStrategy.agentsToProvision(config, 2, 5, 6));
+        assertEquals(3, JobNodesOnDemandStrategy.agentsToProvision(config, 2, 0, 5));
+        assertEquals(5, JobNodesOnDemandStrategy.agentsToProvision(config, 1, 0, 5));
+    }
+
+    @Test
+    public void agentsAreLimitedPerTick() {
+        assertEquals(4, JobNodesOnDemandStrategy.agentsToProvision(config(c -> c.setMaxAgentsPerTick(4)), 1, 0, 10));
+        assertEquals("at least one agent per tick", 1,
+                JobNodesOnDemandStrategy.agentsToProvision(config(c -> c.setMaxAgentsPerTick(0)), 1, 0, 10));
+    }
+
+    @Test
+    public void forecastIsLimitedToTheForecastAgents() {
+        final JobNodesOnDemandConfiguration.Snapshot config = config(c -> c.setMaxForecastAgents(3));
+        assertEquals(5, JobNodesOnDemandStrategy.forecastDemand(config, 5, 2));
+        assertEquals("3 agents with 2 executors", 6, JobNodesOnDemandStrategy.forecastDemand(config, 9, 2));
+        assertEquals("disabled", 0, JobNodesOnDemandStrategy.forecastDemand(config(c -> c.setMaxForecastAgents(0)), 9, 2));
+    }
+
+    @Test
+    public void forecastAddsAgentsAheadOfTheQueue() {
+        final JobNodesOnDemandConfiguration.Snapshot config = config(c -> c.setMaxAgentsPerTick(10));
+        final int forecast = JobNodesOnDemandStrategy.forecastDemand(config(c -> c.setMaxForecastAgents(2)), 3, 1);
+        assertEquals(2, forecast);
+        assertEquals("for the queue", 1, JobNodesOnDemandStrategy.agentsToProvision(config, 1, 4, 5));
+        assertEquals("ahead of demand", 3, JobNodesOnDemandStrategy.agentsToProvision(config, 1, 4, 5 + forecast));
+    }
+
+    @Test
+    public void capacityCoveringTheDemandConsultsTheOtherStrategies() {
+        final JobNodesOnDemandConfiguration.Snapshot config = config(c -> c.setMaxForecastAgents(0));
+        final NodeProvisioner.StrategyState state = SyntheticStrategyState.of(new LabelAtom("strategy-covered"), 1, 1, 3, 1);
+        assertEquals(NodeProvisioner.StrategyDecision.CONSULT_REMAINING_STRATEGIES,
+                new JobNodesOnDemandStrategy().applyFoCloud(state, config));
+    }
+
+    @Test
+    public void buildableItemsOfAWindowAreReviewedTogether() throws Exception {
+        final AtomicInteger reviews = new AtomicInteger();
+        final NodeProvisioner provisioner = new NodeProvisioner(null, null) {
+            @Override
+            public void suggestReviewNow() {
+                reviews.incrementAndGet();
+            }
+        };
+        final JobNodesOnDemandStrategy.FastProvisionning listener = new JobNodesOnDemandStrategy.FastProvisionning();
+        for (int i = 0; i < 10; i++) {
+            listener.suggestReview(provisioner);
+        }
+        assertEquals("the first item is reviewed at once", 1, reviews.get());
+
+        for (int i = 0; i < 100 && reviews.get() < 2; i++) {
+            Thread.sleep(JobNodesOnDemandStrategy.FastProvisionning.WINDOW_MILLIS / 10);
+        }
+        assertEquals("the other items once the window closed", 2, reviews.get());
+
+        listener.suggestReview(provisioner);
+        assertEquals("the next item opens a new window", 3, reviews.get());
+    }
+
+    /**
+     * @return an enabled configuration without templates with the given settings, which are neither saved nor published
+     */
+    private static JobNodesOnDemandConfiguration.Snapshot config(Consumer<JobNodesOnDemandConfiguration> settings) {
+        final JobNodesOnDemandConfiguration config = new JobNodesOnDemandConfiguration(Collections.emptyList());
+        try (BulkChange bc = new BulkChange(config)) {
+            settings.accept(config);
+        }
+        return new JobNodesOnDemandConfiguration.Snapshot(config);
+    }
+}
@@ -0,0 +1,106 @@
+package io.jenkins.nodes;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+import hudson.model.Label;
+import hudson.model.labels.LabelAtom;
+import hudson.model.labels.LabelExpression;
+import hudson.util.QuotedStringTokenizer;
+
+public class NormalizedLabelTest {
+
+    @Test
+    public void conjunctionsShareTheirSortedKey() {
+        final LabelAtom golang = new LabelAtom("golang");
+        final LabelAtom linux = new LabelAtom("linux");
+        final LabelExpression.And expression = new LabelExpression.And(linux, golang);
+        final NormalizedLabel label = NormalizedLabel.of(expression);
+        assertEquals("golang && linux", label.getKey());
+        assertEquals("golang linux", label.getLabelString());
+        assertEquals("golang-linux", label.getName());
+        assertEquals(Arrays.asList("golang", "linux"), label.getAtoms());
+        assertEquals(label.getKey(), NormalizedLabel.keyOf(new LabelExpression.And(golang, linux)));
+        assertTrue(expression.matches(agentOf(label)));
+    }
+
+    @Test
+    public void atomsWithWhitespaceAreQuoted() {
+        final LabelExpression.And expression = new LabelExpression.And(new LabelAtom("node 12.x"), new LabelAtom("linux"));
+        final NormalizedLabel label = NormalizedLabel.of(expression);
+        assertEquals("linux && \"node 12.x\"", label.getKey());
+        assertEquals("linux-node_12.x", label.getName());
+        assertTrue(expression.matches(agentOf(label)));
+    }
+
+    @Test
+    public void negationsAreNotProvisioned() {
+        final LabelExpression.Not label = new LabelExpression.Not(new LabelAtom("windows"));
+        assertEquals(label.getExpression(), NormalizedLabel.keyOf(label));
+        assertFalse(NormalizedLabel.of(label).isProvisionable());
+
+        final LabelAtom docker = new LabelAtom("docker");
+        final LabelAtom linux = new LabelAtom("linux");
+        assertFalse(NormalizedLabel.of(new LabelExpression.Implies(docker, linux)).isProvisionable());
+        assertFalse(NormalizedLabel.of(new LabelExpression.Iff(docker, linux)).isProvisionable());
+        assertFalse("a negated alternative",
+                NormalizedLabel.of(new LabelExpression.Or(docker, new LabelExpression.Not(linux))).isProvisionable());
+    }
+
+    @Test
+    public void disjunctionsAreProvisionedWithTheirFirstAlternative() {
+        final LabelExpression.Or expression = new LabelExpression.Or(
+                new LabelExpression.And(new LabelAtom("windows"), new LabelAtom("x64")), new LabelAtom("linux"));
+        final NormalizedLabel label = NormalizedLabel.of(expression);
+        assertEquals(expression.getExpression(), label.getKey());
+        assertTrue(label.isProvisionable());
+        assertEquals(Arrays.asList("windows", "x64"), label.getAtoms());
+        assertEquals("windows x64", label.getLabelString());
+        assertTrue(expression.matches(agentOf(label)));
+
+        final LabelExpression.And nested = new LabelExpression.And(new LabelAtom("docker"),
+                new LabelExpression.Paren(new LabelExpression.Or(new LabelAtom("windows"), new LabelAtom("linux"))));
+        final NormalizedLabel alternative = NormalizedLabel.of(nested);
+        assertEquals(nested.getExpression(), alternative.getKey());
+        assertEquals(Arrays.asList("docker", "windows"), alternative.getAtoms());
+        assertTrue(nested.matches(agentOf(alternative)));
+    }
+
+    @Test
+    public void imagesGetTheAtomsOfTheLabel() {
+        final AgentTemplate template = new AgentTemplate("*");
+        template.setAgentImage("registry.local/agent:{label}");
+        final JobNodesOnDemandConfiguration.Snapshot config =
+                new JobNodesOnDemandConfiguration(Collections.singletonList(template)).snapshot();
+        assertEquals("registry.local/agent:golang-linux", config.resolve(
+                new LabelExpression.And(new LabelAtom("linux"), new LabelAtom("golang"))).getAgentImage());
+        assertEquals("registry.local/agent:node 12.x", config.resolve(new LabelAtom("node 12.x")).getAgentImage());
+    }
+
+    @Test
+    public void namesKeepOnlyNodeNameCharacters() {
+        assertEquals("golang-linux", NormalizedLabel.toName("golang-linux"));
+        assertEquals("node_12.x", NormalizedLabel.toName("node 12.x"));
+        assertEquals("linux_docker", NormalizedLabel.toName("!linux || docker"));
+        assertEquals("agent", NormalizedLabel.toName("&&"));
+    }
+
+    /**
+     * @return the atoms of an agent with the label string of the label
+     */
+    private static List<LabelAtom> agentOf(NormalizedLabel label) {
+        final List<LabelAtom> atoms = new ArrayList<>();
+        for (String atom : new QuotedStringTokenizer(label.getLabelString()).toArray()) {
+            atoms.add(new LabelAtom(atom));
+        }
+        return atoms;
+    }
+}
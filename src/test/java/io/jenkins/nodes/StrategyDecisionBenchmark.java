@@ -0,0 +1,74 @@
+package io.jenkins.nodes;
+
+import java.util.concurrent.TimeUnit;
+
+import org.fr123k.jenkins.plugins.agents.SyntheticAgents;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import hudson.model.labels.LabelAtom;
+import hudson.slaves.NodeProvisioner;
+import jenkins.benchmark.jmh.JmhBenchmark;
+
+/**
+ * Measures the per label decision of {@link JobNodesOnDemandStrategy}: template resolution, the
+ * agent index lookups, the capacity arithmetic, the circuit breaker and the provisioning limiter.
+ * Every label gets a {@code NodeProvisioner.StrategyState} with its own load. The global agent cap
+ * is reached by the synthetic agents, so the limiter grants nothing and the strategy decides
+ * without provisioning agents, which would need a Jenkins instance.
+ */
+@JmhBenchmark
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class StrategyDecisionBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class ControllerState {
+        @Param({"10", "1000", "10000"})
+        public int nodes;
+
+        @Param({"1", "100", "1000"})
+        public int labels;
+
+        String[] labelNames;
+        NodeProvisioner.StrategyState[] states;
+        JobNodesOnDemandConfiguration.Snapshot config;
+        final JobNodesOnDemandStrategy strategy = new JobNodesOnDemandStrategy();
+
+        @Setup(Level.Trial)
+        public void setup() {
+            labelNames = SyntheticConfiguration.labels(labels);
+            states = new NodeProvisioner.StrategyState[labels];
+            for (int i = 0; i < labels; i++) {
+                // a mix of labels whose demand is covered and labels which are short of executors
+                states[i] = SyntheticStrategyState.of(new LabelAtom(labelNames[i]), i & 7, 0, 1 + (i & 31), 0);
+            }
+            config = SyntheticConfiguration.snapshot(10, c -> c.setMaxAgents(1));
+            SyntheticAgents.populate(labelNames, nodes);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            SyntheticAgents.clear(labelNames, nodes);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        int next;
+    }
+
+    @Benchmark
+    public NodeProvisioner.StrategyDecision decide(ControllerState state, Cursor cursor) {
+        final int i = cursor.next++ % state.labels;
+        return state.strategy.applyFoCloud(state.states[i], state.config);
+    }
+}
@@ -0,0 +1,79 @@
+package io.jenkins.nodes;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+import hudson.BulkChange;
+
+/**
+ * Builds configurations for benchmarks which run without a Jenkins instance.
+ */
+public final class SyntheticConfiguration {
+
+    private SyntheticConfiguration() {
+    }
+
+    /**
+     * @return the label names {@code label-0} to {@code label-(count-1)}
+     */
+    public static String[] labels(int count) {
+        final String[] labels = new String[count];
+        for (int i = 0; i < count; i++) {
+            labels[i] = "label-" + i;
+        }
+        return labels;
+    }
+
+    /**
+     * Creates templates with a mix of exact, prefix and glob patterns, none of which match
+     * {@link #labels(int)} except the last catch-all prefix template.
+     */
+    public static List<AgentTemplate> templates(int count) {
+        final List<AgentTemplate> templates = new ArrayList<>(count);
+        for (int i = 0; i < count - 1; i++) {
+            final String pattern;
+            switch (i % 3) {
+            case 0:
+                pattern = "team-" + i;
+                break;
+            case 1:
+                pattern = "pool-" + i + "-*";
+                break;
+            default:
+                pattern = "os-?-" + i;
+                break;
+            }
+            final AgentTemplate template = new AgentTemplate(pattern);
+            template.setAgentImage("registry.local/" + pattern + ":{label}");
+            templates.add(template);
+        }
+        if (count > 0) {
+            final AgentTemplate template = new AgentTemplate("label-*");
+            template.setAgentExecutors(2);
+            template.setAgentImage("registry.local/agent:{label}");
+            templates.add(template);
+        }
+        return templates;
+    }
+
+    /**
+     * @return an enabled configuration with {@code templates} templates which is not published
+     */
+    public static JobNodesOnDemandConfiguration.Snapshot snapshot(int templates) {
+        return new JobNodesOnDemandConfiguration(templates(templates)).snapshot();
+    }
+
+    /**
+     * @return an enabled configuration like {@link #snapshot(int)} with the given settings, which
+     *         are neither saved nor published
+     */
+    public static JobNodesOnDemandConfiguration.Snapshot snapshot(int templates,
+            Consumer<JobNodesOnDemandConfiguration> settings) {
+        final JobNodesOnDemandConfiguration config = new JobNodesOnDemandConfiguration(templates(templates));
+        try (BulkChange bc = new BulkChange(config)) {
+            settings.accept(config);
+        }
+        return new JobNodesOnDemandConfiguration.Snapshot(config);
+    }
+}
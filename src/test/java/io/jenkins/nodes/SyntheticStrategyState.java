@@ -0,0 +1,49 @@
+package io.jenkins.nodes;
+
+import java.lang.reflect.Constructor;
+
+import hudson.model.Label;
+import hudson.model.LoadStatistics;
+import hudson.slaves.NodeProvisioner;
+
+/**
+ * Creates the {@link NodeProvisioner.StrategyState} the provisioner passes to its strategies, for
+ * tests and benchmarks which run without a Jenkins instance. Core only creates it in
+ * {@code NodeProvisioner.update()}, so its private constructors are called reflectively.
+ */
+public final class SyntheticStrategyState {
+
+    private SyntheticStrategyState() {
+    }
+
+    /**
+     * @param available idle executors of the label
+     * @param connecting executors of the label which are connecting
+     * @param queueLength buildable items of the label
+     * @param planned executors of the agents the provisioner already plans for the label
+     */
+    public static NodeProvisioner.StrategyState of(Label label, int available, int connecting, int queueLength,
+            int planned) {
+        try {
+            final Constructor<?> snapshot = constructor(LoadStatistics.LoadStatisticsSnapshot.class, 7);
+            // defined, online, connecting, busy, idle, available executors and the queue length
+            final Object statistics = snapshot.newInstance(available + connecting, available, connecting, 0,
+                    available, available, queueLength);
+            final Constructor<?> state = constructor(Class.forName(NodeProvisioner.class.getName() + "$StrategyStateImpl"), 4);
+            return (NodeProvisioner.StrategyState) state.newInstance(new NodeProvisioner(label, null), statistics,
+                    label, planned);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("NodeProvisioner.StrategyState can't be created", e);
+        }
+    }
+
+    private static Constructor<?> constructor(Class<?> type, int parameters) throws NoSuchMethodException {
+        for (Constructor<?> constructor : type.getDeclaredConstructors()) {
+            if (constructor.getParameterCount() == parameters) {
+                constructor.setAccessible(true);
+                return constructor;
+            }
+        }
+        throw new NoSuchMethodException(type.getName() + " has no constructor with " + parameters + " parameters");
+    }
+}
@@ -0,0 +1,59 @@
+package io.jenkins.nodes;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.Arrays;
+import java.util.function.Function;
+
+import org.junit.Test;
+
+public class TemplateMatcherTest {
+
+    private static TemplateMatcher<String> matcher(String... patterns) {
+        return new TemplateMatcher<>(Arrays.asList(patterns), Function.identity());
+    }
+
+    @Test
+    public void exactPrefixAndGlobPatterns() {
+        TemplateMatcher<String> matcher = matcher("gpu-less-heavy", "golang-*", "node-?", "*-arm");
+        assertEquals("gpu-less-heavy", matcher.match("gpu-less-heavy"));
+        assertEquals("golang-*", matcher.match("golang-1.13"));
+        assertEquals("node-?", matcher.match("node-8"));
+        assertEquals("*-arm", matcher.match("node-12-arm"));
+        assertNull(matcher.match("gpu-less"));
+        assertNull(matcher.match("golang"));
+    }
+
+    @Test
+    public void firstMatchingPatternWins() {
+        TemplateMatcher<String> matcher = matcher("*-arm", "golang-*", "golang-arm", "*");
+        assertEquals("*-arm", matcher.match("golang-arm"));
+        assertEquals("golang-*", matcher.match("golang-x86"));
+        assertEquals("*", matcher.match("python"));
+    }
+
+    @Test
+    public void patternsAreLiteralExceptWildcards() {
+        TemplateMatcher<String> matcher = matcher("a.b*", "c+d");
+        assertEquals("a.b*", matcher.match("a.bc"));
+        assertNull(matcher.match("axbc"));
+        assertEquals("c+d", matcher.match("c+d"));
+        assertNull(matcher.match("ccd"));
+    }
+
+    @Test
+    public void alternativesMatchInTemplateOrder() {
+        TemplateMatcher<String> matcher = matcher("golang && linux", "linux", "golang-*");
+        assertEquals("golang && linux", matcher.match("golang && linux", Arrays.asList("golang", "linux")));
+        assertEquals("linux", matcher.match("golang-1.13 && linux", Arrays.asList("golang-1.13", "linux")));
+        assertNull(matcher.match("python && windows", Arrays.asList("python", "windows")));
+    }
+
+    @Test
+    public void blankPatternsNeverMatch() {
+        TemplateMatcher<String> matcher = matcher(null, "  ", "golang");
+        assertEquals("golang", matcher.match("golang"));
+        assertNull(matcher.match(""));
+    }
+}
@@ -0,0 +1,68 @@
+package io.jenkins.nodes;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import hudson.model.Label;
+import hudson.model.labels.LabelAtom;
+import jenkins.benchmark.jmh.JmhBenchmark;
+
+/**
+ * Measures matching a label against the templates and resolving it through the snapshot cache.
+ */
+@JmhBenchmark
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class TemplateResolutionBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Templates {
+        @Param({"1", "100", "1000"})
+        public int templates;
+
+        @Param({"1", "100", "1000"})
+        public int labels;
+
+        String[] labelNames;
+        Label[] labelAtoms;
+        TemplateMatcher<AgentTemplate> matcher;
+        JobNodesOnDemandConfiguration.Snapshot config;
+
+        @Setup(Level.Trial)
+        public void setup() {
+            labelNames = SyntheticConfiguration.labels(labels);
+            labelAtoms = new Label[labels];
+            for (int i = 0; i < labels; i++) {
+                labelAtoms[i] = new LabelAtom(labelNames[i]);
+            }
+            final List<AgentTemplate> list = SyntheticConfiguration.templates(templates);
+            matcher = new TemplateMatcher<>(list, AgentTemplate::getLabelPattern);
+            config = new JobNodesOnDemandConfiguration(list).snapshot();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        int next;
+    }
+
+    @Benchmark
+    public AgentTemplate match(Templates state, Cursor cursor) {
+        return state.matcher.match(state.labelNames[cursor.next++ % state.labels]);
+    }
+
+    @Benchmark
+    public AgentTemplate.Resolved resolve(Templates state, Cursor cursor) {
+        return state.config.resolve(state.labelAtoms[cursor.next++ % state.labels]);
+    }
+}
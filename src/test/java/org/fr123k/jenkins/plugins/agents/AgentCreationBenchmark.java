@@ -0,0 +1,65 @@
+package org.fr123k.jenkins.plugins.agents;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import hudson.model.Label;
+import hudson.model.Slave;
+import hudson.model.labels.LabelAtom;
+import io.jenkins.nodes.AgentTemplate;
+import io.jenkins.nodes.JobNodesOnDemandConfiguration;
+import io.jenkins.nodes.NormalizedLabel;
+import io.jenkins.nodes.SyntheticConfiguration;
+import jenkins.benchmark.jmh.JmhBenchmark;
+import jenkins.benchmark.jmh.JmhBenchmarkState;
+
+/**
+ * Measures building the agent node in {@link AgentsJob}. Parsing the label string of a node needs
+ * a Jenkins instance, so this benchmark starts a temporary one.
+ */
+@JmhBenchmark
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class AgentCreationBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Controller extends JmhBenchmarkState {
+        @Param({"1", "100", "1000"})
+        public int labels;
+
+        Label[] labelAtoms;
+        AgentTemplate.Resolved[] templates;
+        JobNodesOnDemandConfiguration.Snapshot config;
+
+        @Override
+        public void setup() {
+            final String[] labelNames = SyntheticConfiguration.labels(labels);
+            config = SyntheticConfiguration.snapshot(10);
+            labelAtoms = new Label[labels];
+            templates = new AgentTemplate.Resolved[labels];
+            for (int i = 0; i < labels; i++) {
+                labelAtoms[i] = new LabelAtom(labelNames[i]);
+                templates[i] = config.resolve(labelAtoms[i]);
+            }
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        int next;
+    }
+
+    @Benchmark
+    public Slave newAgent(Controller state, Cursor cursor) throws Exception {
+        final int i = cursor.next++ % state.labels;
+        final NormalizedLabel label = NormalizedLabel.of(state.labelAtoms[i]);
+        return AgentsJob.newAgent(state.config, state.templates[i], label, label.getName() + "-" + i, 2);
+    }
+}
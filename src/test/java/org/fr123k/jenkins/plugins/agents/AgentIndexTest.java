@@ -0,0 +1,66 @@
+package org.fr123k.jenkins.plugins.agents;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.SleepBuilder;
+
+import hudson.model.Computer;
+import hudson.model.FreeStyleProject;
+import hudson.slaves.DumbSlave;
+import hudson.slaves.OfflineCause;
+
+public class AgentIndexTest {
+
+    @Rule
+    public JenkinsRule r = new JenkinsRule();
+
+    @Test
+    public void followsTheAgentThroughItsStates() throws Exception {
+        final AgentIndex index = AgentIndex.get();
+        final DumbSlave agent = new DumbSlave("index-agent", "/tmp/index-agent", r.createComputerLauncher(null));
+        agent.setLabelString("index");
+        agent.setRetentionStrategy(new JobRetentionStrategy("index", 10, 0));
+        r.jenkins.addNode(agent);
+        assertEquals("added, not online yet", AgentIndex.State.PROVISIONING, index.state("index-agent"));
+
+        r.waitOnline(agent);
+        await(AgentIndex.State.IDLE);
+        assertEquals(1, index.count("index", AgentIndex.State.IDLE));
+
+        final FreeStyleProject project = r.createFreeStyleProject();
+        project.setAssignedLabel(r.jenkins.getLabel("index"));
+        project.getBuildersList().add(new SleepBuilder(3000));
+        project.scheduleBuild2(0);
+        await(AgentIndex.State.BUSY);
+        r.waitUntilNoActivity();
+        await(AgentIndex.State.IDLE);
+
+        final Computer computer = agent.toComputer();
+        computer.setTemporarilyOffline(true, new OfflineCause.UserCause(null, "drain"));
+        await(AgentIndex.State.DRAINING);
+        computer.setTemporarilyOffline(false, null);
+        await(AgentIndex.State.IDLE);
+
+        computer.disconnect(new OfflineCause.UserCause(null, "lost")).get();
+        await(AgentIndex.State.DISCONNECTED);
+        assertEquals(1, index.count("index", AgentIndex.State.DISCONNECTED));
+
+        r.jenkins.removeNode(agent);
+        assertNull(index.state("index-agent"));
+        assertEquals(0, index.count("index", AgentIndex.State.DISCONNECTED));
+    }
+
+    /**
+     * Waits for the listeners, which run after the computer changed its state.
+     */
+    private static void await(AgentIndex.State state) throws InterruptedException {
+        for (int i = 0; i < 100 && AgentIndex.get().state("index-agent") != state; i++) {
+            Thread.sleep(100);
+        }
+        assertEquals(state, AgentIndex.get().state("index-agent"));
+    }
+}
@@ -0,0 +1,60 @@
+package org.fr123k.jenkins.plugins.agents;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.RestartableJenkinsRule;
+
+import hudson.model.Computer;
+import hudson.model.FreeStyleProject;
+import hudson.model.ParametersDefinitionProperty;
+import hudson.model.StringParameterDefinition;
+import hudson.slaves.DumbSlave;
+
+public class AgentJournalTest {
+
+    @Rule
+    public RestartableJenkinsRule rr = new RestartableJenkinsRule();
+
+    @Test
+    public void journaledAgentIsNotLaunchedAgainAfterRestart() {
+        rr.then(r -> {
+            final FreeStyleProject provision = r.createFreeStyleProject("provision-agents");
+            provision.setAssignedLabel(r.jenkins.getSelfLabel());
+            provision.addProperty(new ParametersDefinitionProperty(
+                    new StringParameterDefinition("node", ""), new StringParameterDefinition("label", "")));
+
+            final DumbSlave agent = new DumbSlave("journal-agent", "/tmp/journal-agent",
+                    new JobComputerLauncher(null, null, "journal", "image", "provision-agents", "decommission-agents"));
+            agent.setRetentionStrategy(new JobRetentionStrategy("journal", 10, 0));
+            r.jenkins.addNode(agent);
+            while (provision.getBuilds().isEmpty()) {
+                Thread.sleep(100);
+            }
+            r.waitUntilNoActivity();
+            assertEquals(AgentLifecycle.State.LAUNCHING, AgentJournal.get().state("journal-agent"));
+
+            // the singletons survive the restart of the test, a restarted controller only has the journal
+            AgentLifecycle.get().reset();
+            AgentJournal.get().reset();
+        });
+        rr.then(r -> {
+            assertTrue("journaled agent waits to reconnect", AgentJournal.get().isRecovering("journal-agent"));
+            assertEquals("restored from the journal", AgentLifecycle.State.LAUNCHING,
+                    AgentLifecycle.get().state("journal-agent"));
+            final Computer computer = r.jenkins.getComputer("journal-agent");
+            assertEquals("the retention strategy did not connect the agent", 0, computer.getConnectTime());
+            Thread.sleep(TimeUnit.SECONDS.toMillis(3));
+            r.waitUntilNoActivity();
+            final FreeStyleProject provision = r.jenkins.getItemByFullName("provision-agents", FreeStyleProject.class);
+            assertEquals("no provision build after the restart", 1, provision.getBuilds().size());
+            assertFalse(computer.isOnline());
+            assertEquals(0, computer.getConnectTime());
+        });
+    }
+}
@@ -0,0 +1,146 @@
+package org.fr123k.jenkins.plugins.agents;
+
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import hudson.model.FreeStyleProject;
+import hudson.model.Node;
+import hudson.model.ParametersDefinitionProperty;
+import hudson.model.StringParameterDefinition;
+import hudson.slaves.DumbSlave;
+import hudson.slaves.JNLPLauncher;
+
+public class AgentLaunchTrackerTest {
+
+    @Rule
+    public JenkinsRule r = new JenkinsRule();
+
+    @Test
+    public void timedOutLaunchIsRetriedOnceThenFails() throws Exception {
+        final FreeStyleProject provision = job("provision-agents", "node", "label");
+        job("decommission-agents", "agentID", "label");
+
+        final DumbSlave agent = new DumbSlave("tracker-retry", "/tmp/tracker-retry",
+                new JobComputerLauncher(null, null, "tracker-retry", "image", "provision-agents", "decommission-agents"));
+        agent.setRetentionStrategy(new JobRetentionStrategy("tracker-retry", 10, 0));
+        final CompletableFuture<Node> future = new CompletableFuture<>();
+        AgentLaunchTracker.get().track("tracker-retry", agent, future, 3, 1);
+        r.jenkins.addNode(agent);
+
+        try {
+            future.get(60, TimeUnit.SECONDS);
+            fail("the agent never comes online");
+        } catch (ExecutionException e) {
+            assertThat(e.getCause(), instanceOf(TimeoutException.class));
+        }
+        // the agent is removed after the last retry
+        for (int i = 0; i < 100 && r.jenkins.getNode("tracker-retry") != null; i++) {
+            Thread.sleep(100);
+        }
+        assertNull(r.jenkins.getNode("tracker-retry"));
+        r.waitUntilNoActivity();
+        assertEquals("the retry connects the agent again", 2, provision.getBuilds().size());
+        assertEquals(0, AgentLaunchTracker.get().getPendingLaunches("tracker-retry"));
+        assertEquals(2, LabelCircuitBreaker.get().getFailures("tracker-retry"));
+    }
+
+    @Test
+    public void missingProvisionJobFailsTheLaunch() throws Exception {
+        job("decommission-agents", "agentID", "label");
+
+        final DumbSlave agent = new DumbSlave("tracker-missing", "/tmp/tracker-missing",
+                new JobComputerLauncher(null, null, "tracker-missing", "image", "missing-agents", "decommission-agents"));
+        agent.setRetentionStrategy(new JobRetentionStrategy("tracker-missing", 10, 0));
+        final CompletableFuture<Node> future = new CompletableFuture<>();
+        AgentLaunchTracker.get().track("tracker-missing", agent, future, 600, 0);
+        r.jenkins.addNode(agent);
+
+        try {
+            future.get(30, TimeUnit.SECONDS);
+            fail("the provision job does not exist");
+        } catch (ExecutionException e) {
+            assertThat(e.getCause(), instanceOf(RuntimeException.class));
+        }
+        assertEquals(1, LabelCircuitBreaker.get().getFailures("tracker-missing"));
+    }
+
+    @Test
+    public void completesOnceOnline() throws Exception {
+        final DumbSlave agent = new DumbSlave("tracker-online", "/tmp/tracker-online", r.createComputerLauncher(null));
+        final CompletableFuture<Node> future = new CompletableFuture<>();
+        AgentLaunchTracker.get().track("tracker-online", agent, future, 60, 0);
+        assertEquals(1, AgentLaunchTracker.get().getPendingLaunches("tracker-online"));
+
+        r.jenkins.addNode(agent);
+        r.waitOnline(agent);
+        assertSame(agent, future.get(10, TimeUnit.SECONDS));
+        assertEquals(0, AgentLaunchTracker.get().getPendingLaunches("tracker-online"));
+        assertFalse(future.isCompletedExceptionally());
+    }
+
+    @Test
+    public void staleLaunchesAreCancelled() throws Exception {
+        final CompletableFuture<Node> own = track("stale-own");
+        final CompletableFuture<Node> shared = track("stale-shared");
+        final CompletableFuture<Node> forecast = track("stale-forecast");
+        DemandForecast.get().planned("stale", "stale-forecast");
+        final CompletableFuture<Void> ownBuild = new CompletableFuture<>();
+        final CompletableFuture<Void> sharedBuild = new CompletableFuture<>();
+        AgentLaunchTracker.get().provisionBuild("stale-own", ownBuild);
+        AgentLaunchTracker.get().provisionBuild("stale-shared", sharedBuild);
+        AgentLaunchTracker.get().provisionBuild("stale-forecast", sharedBuild);
+
+        AgentLaunchTracker.get().cancelStale(System.currentTimeMillis());
+        assertEquals("the launches are in their grace period", 3, AgentLaunchTracker.get().getPendingLaunches("stale"));
+
+        AgentLaunchTracker.get().cancelStale(System.currentTimeMillis()
+                + TimeUnit.SECONDS.toMillis(AgentLaunchTracker.CANCEL_GRACE_SECONDS + 1));
+        assertTrue(own.isCompletedExceptionally());
+        assertTrue(shared.isCompletedExceptionally());
+        assertTrue("the build of the agent is cancelled", ownBuild.isCancelled());
+        assertFalse("the build provisions another agent", sharedBuild.isCancelled());
+        assertNull(r.jenkins.getNode("stale-own"));
+        assertNull(r.jenkins.getNode("stale-shared"));
+
+        assertFalse("agents provisioned ahead of demand are kept", forecast.isDone());
+        assertEquals(1, AgentLaunchTracker.get().getPendingLaunches("stale"));
+        AgentLaunchTracker.get().cancel("stale-forecast");
+    }
+
+    /**
+     * Adds an agent of the label {@code stale} which never connects and tracks its launch.
+     */
+    private CompletableFuture<Node> track(String nodeName) throws Exception {
+        final DumbSlave agent = new DumbSlave(nodeName, "/tmp/" + nodeName, new JNLPLauncher());
+        final CompletableFuture<Node> future = new CompletableFuture<>();
+        AgentLaunchTracker.get().track("stale", agent, future, 600, 0);
+        r.jenkins.addNode(agent);
+        return future;
+    }
+
+    private FreeStyleProject job(String name, String... parameters) throws Exception {
+        final FreeStyleProject job = r.createFreeStyleProject(name);
+        job.setAssignedLabel(r.jenkins.getSelfLabel());
+        final StringParameterDefinition[] definitions = new StringParameterDefinition[parameters.length];
+        for (int i = 0; i < parameters.length; i++) {
+            definitions[i] = new StringParameterDefinition(parameters[i], "");
+        }
+        job.addProperty(new ParametersDefinitionProperty(definitions));
+        return job;
+    }
+}
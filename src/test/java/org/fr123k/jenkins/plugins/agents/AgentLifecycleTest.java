@@ -0,0 +1,139 @@
+package org.fr123k.jenkins.plugins.agents;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import hudson.model.FreeStyleProject;
+import hudson.model.ParametersDefinitionProperty;
+import hudson.model.StringParameterDefinition;
+import hudson.slaves.DumbSlave;
+
+public class AgentLifecycleTest {
+
+    @Rule
+    public JenkinsRule r = new JenkinsRule();
+
+    @Test
+    public void launchAndDecommissionOnce() {
+        final AgentLifecycle lifecycle = AgentLifecycle.get();
+        lifecycle.planned("lifecycle", "lifecycle-once");
+        assertTrue(lifecycle.launching("lifecycle", "lifecycle-once"));
+        assertFalse("already launching", lifecycle.launching("lifecycle", "lifecycle-once"));
+
+        lifecycle.online("lifecycle", "lifecycle-once");
+        assertFalse("online agents are not launched", lifecycle.launching("lifecycle", "lifecycle-once"));
+        assertEquals(AgentLifecycle.State.ONLINE, lifecycle.state("lifecycle-once"));
+
+        assertTrue(lifecycle.decommissioning("lifecycle", "lifecycle-once"));
+        assertFalse("already decommissioning", lifecycle.decommissioning("lifecycle", "lifecycle-once"));
+        lifecycle.online("lifecycle", "lifecycle-once");
+        assertEquals(AgentLifecycle.State.DECOMMISSIONING, lifecycle.state("lifecycle-once"));
+    }
+
+    @Test
+    public void relaunchAllowsOneMoreLaunch() {
+        final AgentLifecycle lifecycle = AgentLifecycle.get();
+        lifecycle.planned("lifecycle", "lifecycle-retry");
+        assertTrue(lifecycle.launching("lifecycle", "lifecycle-retry"));
+        lifecycle.relaunch("lifecycle-retry");
+        assertTrue(lifecycle.launching("lifecycle", "lifecycle-retry"));
+        assertFalse(lifecycle.launching("lifecycle", "lifecycle-retry"));
+    }
+
+    @Test
+    public void concurrentTriggersFireOnce() throws Exception {
+        final AgentLifecycle lifecycle = AgentLifecycle.get();
+        lifecycle.planned("lifecycle", "lifecycle-race");
+        final ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            assertEquals(1, count(executor, () -> lifecycle.launching("lifecycle", "lifecycle-race")));
+            assertEquals(1, count(executor, () -> lifecycle.decommissioning("lifecycle", "lifecycle-race")));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void journalEndsInTheLastTransition() throws Exception {
+        final AgentLifecycle lifecycle = AgentLifecycle.get();
+        final ExecutorService executor = Executors.newFixedThreadPool(3);
+        try {
+            for (int i = 0; i < 100; i++) {
+                final String nodeName = "lifecycle-journal-" + i;
+                lifecycle.planned("lifecycle", nodeName);
+                executor.invokeAll(Arrays.<Callable<Boolean>>asList(
+                        () -> lifecycle.launching("lifecycle", nodeName),
+                        () -> {
+                            lifecycle.relaunch(nodeName);
+                            return true;
+                        },
+                        () -> {
+                            lifecycle.online("lifecycle", nodeName);
+                            return true;
+                        }));
+                assertEquals(nodeName, lifecycle.state(nodeName), AgentJournal.get().state(nodeName));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void agentThatDoesNotReconnectIsRemoved() throws Exception {
+        job("provision-agents", "node", "label");
+        final FreeStyleProject decommission = job("decommission-agents", "agentID", "label");
+        final JobComputerLauncher launcher =
+                new JobComputerLauncher(null, null, "lifecycle", "image", "provision-agents", "decommission-agents");
+        final DumbSlave agent = new DumbSlave("lifecycle-grace", "/tmp/lifecycle-grace", launcher);
+        agent.setRetentionStrategy(new JobRetentionStrategy("lifecycle", 10, 0));
+        r.jenkins.addNode(agent);
+        r.waitUntilNoActivity();
+
+        final AgentLifecycle lifecycle = AgentLifecycle.get();
+        lifecycle.online("lifecycle", "lifecycle-grace");
+        lifecycle.reconnectTimedOut("lifecycle-grace", launcher);
+        assertNull(r.jenkins.getNode("lifecycle-grace"));
+        assertEquals(AgentLifecycle.State.GONE, lifecycle.state("lifecycle-grace"));
+        r.waitUntilNoActivity();
+        assertEquals("decommissioned once", 1, decommission.getBuilds().size());
+    }
+
+    private FreeStyleProject job(String name, String... parameters) throws Exception {
+        final FreeStyleProject job = r.createFreeStyleProject(name);
+        job.setAssignedLabel(r.jenkins.getSelfLabel());
+        final StringParameterDefinition[] definitions = new StringParameterDefinition[parameters.length];
+        for (int i = 0; i < parameters.length; i++) {
+            definitions[i] = new StringParameterDefinition(parameters[i], "");
+        }
+        job.addProperty(new ParametersDefinitionProperty(definitions));
+        return job;
+    }
+
+    private static int count(ExecutorService executor, Callable<Boolean> trigger) throws Exception {
+        final List<Future<Boolean>> results = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            results.add(executor.submit(trigger));
+        }
+        int fired = 0;
+        for (Future<Boolean> result : results) {
+            if (result.get()) {
+                fired++;
+            }
+        }
+        return fired;
+    }
+}
@@ -0,0 +1,245 @@
+package org.fr123k.jenkins.plugins.agents;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeFalse;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import hudson.Functions;
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import hudson.model.Node;
+import hudson.model.ParametersAction;
+import hudson.model.ParametersDefinitionProperty;
+import hudson.model.StringParameterDefinition;
+import hudson.model.StringParameterValue;
+import hudson.model.queue.QueueTaskFuture;
+import hudson.remoting.Launcher;
+import hudson.remoting.Which;
+import hudson.tasks.Shell;
+import io.jenkins.nodes.JobNodesOnDemandConfiguration;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+
+/**
+ * Runs bursts of labeled builds against a Jenkins with on demand agents, with {@code mvn test -P load}.
+ *
+ * <p>
+ * The provision job starts every agent as a local inbound agent process and the decommission job
+ * kills it, so neither Docker nor the network are needed. Every burst reports the time to the first
+ * build, the time until the queue is drained and all builds are done, the agents created compared
+ * with the minimum needed and the CPU and heap use of the controller. The report and the
+ * provisioning metrics go to {@code burst-load-report.json}. The load is configured with the system
+ * properties {@code burst.labels}, {@code burst.builds} per burst, {@code burst.bursts},
+ * {@code burst.pauseSeconds} between bursts, {@code burst.buildSeconds}, {@code burst.executors} per
+ * agent and {@code burst.batch} for batch provisioning.
+ */
+public class BurstLoadHarness {
+
+    private static final int LABELS = Integer.getInteger("burst.labels", 20);
+    private static final int BUILDS = Integer.getInteger("burst.builds", 200);
+    private static final int BURSTS = Integer.getInteger("burst.bursts", 3);
+    private static final int PAUSE_SECONDS = Integer.getInteger("burst.pauseSeconds", 10);
+    private static final int BUILD_SECONDS = Integer.getInteger("burst.buildSeconds", 1);
+    private static final int EXECUTORS = Integer.getInteger("burst.executors", 1);
+    private static final boolean BATCH = Boolean.parseBoolean(System.getProperty("burst.batch", "true"));
+    private static final long BURST_TIMEOUT_MINUTES = 10;
+
+    @Rule
+    public JenkinsRule r = new JenkinsRule();
+
+    {
+        // the bursts take longer than the default test timeout
+        r.timeout = 0;
+    }
+
+    @Rule
+    public TemporaryFolder agents = new TemporaryFolder();
+
+    private final Set<String> createdAgents = ConcurrentHashMap.newKeySet();
+    private volatile long peakHeap;
+
+    @After
+    public void killAgents() throws Exception {
+        final File[] pids = agents.getRoot().listFiles((dir, name) -> name.endsWith(".pid"));
+        if (pids != null) {
+            for (File pid : pids) {
+                new ProcessBuilder("kill", new String(Files.readAllBytes(pid.toPath()), StandardCharsets.UTF_8).trim())
+                        .start().waitFor();
+            }
+        }
+    }
+
+    @Test
+    public void bursts() throws Exception {
+        assumeFalse("The agents are started by a shell script", Functions.isWindows());
+        r.jenkins.setNumExecutors(4);
+        r.jenkins.setSlaveAgentPort(0);
+        createAgentJobs();
+
+        final JobNodesOnDemandConfiguration config = JobNodesOnDemandConfiguration.get();
+        config.setAgentProvisionJob("provision-agents");
+        config.setAgentDecomissionJob("decommission-agents");
+        config.setAgentExecutors(EXECUTORS);
+        config.setBatchProvisioning(BATCH);
+        config.setBatchWindow(1);
+        config.setLaunchTimeout(120);
+        config.setEnabled(true);
+
+        final List<FreeStyleProject> jobs = new ArrayList<>();
+        for (int i = 0; i < LABELS; i++) {
+            final FreeStyleProject job = r.createFreeStyleProject("load-" + i);
+            job.setAssignedLabel(r.jenkins.getLabel("load-" + i));
+            job.setConcurrentBuild(true);
+            job.addProperty(new ParametersDefinitionProperty(new StringParameterDefinition("id", "")));
+            job.getBuildersList().add(new Shell("sleep " + BUILD_SECONDS));
+            jobs.add(job);
+        }
+
+        final Thread sampler = new Thread(this::sample, "BurstLoadHarness sampler");
+        sampler.setDaemon(true);
+        sampler.start();
+
+        final JSONArray report = new JSONArray();
+        try {
+            for (int burst = 0; burst < BURSTS; burst++) {
+                if (burst > 0) {
+                    Thread.sleep(TimeUnit.SECONDS.toMillis(PAUSE_SECONDS));
+                }
+                report.add(burst(burst, jobs));
+            }
+        } finally {
+            sampler.interrupt();
+        }
+
+        final JSONObject json = new JSONObject();
+        json.put("labels", LABELS);
+        json.put("buildsPerBurst", BUILDS);
+        json.put("executorsPerAgent", EXECUTORS);
+        json.put("batchProvisioning", BATCH);
+        json.put("bursts", report);
+        json.put("agentsCreated", createdAgents.size());
+        json.put("metrics", ProvisioningMetrics.get().toJSON());
+        final File file = new File("target/burst-load-report.json");
+        Files.write(file.toPath(), json.toString(2).getBytes(StandardCharsets.UTF_8));
+    }
+
+    private JSONObject burst(int burst, List<FreeStyleProject> jobs) throws Exception {
+        System.gc();
+        final int agentsBefore = createdAgents.size();
+        final long cpuBefore = processCpuNanos();
+        peakHeap = 0;
+        final long submitted = System.currentTimeMillis();
+
+        final List<QueueTaskFuture<FreeStyleBuild>> builds = new ArrayList<>(BUILDS);
+        for (int i = 0; i < BUILDS; i++) {
+            builds.add(jobs.get(i % LABELS).scheduleBuild2(0,
+                    new ParametersAction(new StringParameterValue("id", burst + "-" + i))));
+        }
+
+        long firstStart = Long.MAX_VALUE, lastStart = 0, lastEnd = 0;
+        for (QueueTaskFuture<FreeStyleBuild> future : builds) {
+            final FreeStyleBuild build = future.get(BURST_TIMEOUT_MINUTES, TimeUnit.MINUTES);
+            r.assertBuildStatusSuccess(build);
+            firstStart = Math.min(firstStart, build.getStartTimeInMillis());
+            lastStart = Math.max(lastStart, build.getStartTimeInMillis());
+            lastEnd = Math.max(lastEnd, build.getStartTimeInMillis() + build.getDuration());
+        }
+        final long elapsed = System.currentTimeMillis() - submitted;
+        final long cpu = cpuBefore < 0 ? -1 : processCpuNanos() - cpuBefore;
+
+        // every label needs enough agents to start all of its builds of the burst at once
+        final int buildsPerLabel = (BUILDS + LABELS - 1) / LABELS;
+        final int minimumAgents = Math.min(BUILDS, LABELS) * ((buildsPerLabel + EXECUTORS - 1) / EXECUTORS);
+
+        final JSONObject json = new JSONObject();
+        json.put("burst", burst);
+        json.put("timeToFirstBuildMillis", firstStart - submitted);
+        json.put("queueDrainMillis", lastStart - submitted);
+        json.put("completedMillis", lastEnd - submitted);
+        json.put("agentsCreated", createdAgents.size() - agentsBefore);
+        json.put("minimumAgents", minimumAgents);
+        json.put("controllerCpuCores", elapsed <= 0 || cpu < 0 ? -1 : (double) cpu / TimeUnit.MILLISECONDS.toNanos(elapsed));
+        json.put("controllerPeakHeapBytes", peakHeap);
+        assertTrue("all builds of the burst ran", lastEnd > 0);
+        return json;
+    }
+
+    /**
+     * Provision and decommission jobs which start and kill local inbound agents, they run on the controller.
+     */
+    private void createAgentJobs() throws IOException {
+        final String dir = agents.getRoot().getAbsolutePath();
+        final String java = new File(System.getProperty("java.home"), "bin/java").getAbsolutePath();
+        final String remoting = Which.jarFile(Launcher.class).getAbsolutePath();
+
+        final FreeStyleProject provision = r.createFreeStyleProject("provision-agents");
+        provision.setAssignedLabel(r.jenkins.getSelfLabel());
+        provision.setConcurrentBuild(true);
+        provision.addProperty(new ParametersDefinitionProperty(
+                new StringParameterDefinition("node", ""), new StringParameterDefinition("nodes", ""),
+                new StringParameterDefinition("label", ""), new StringParameterDefinition("image", "")));
+        provision.getBuildersList().add(new Shell(
+                "for n in $(echo \"${nodes:-$node}\" | tr ',' ' '); do\n"
+                + "  BUILD_ID=dontKillMe JENKINS_NODE_COOKIE=dontKillMe nohup '" + java + "' -cp '" + remoting + "'"
+                + " hudson.remoting.Launcher -jnlpUrl '" + r.getURL() + "computer/'$n'/slave-agent.jnlp'"
+                + " -workDir '" + dir + "/'$n > '" + dir + "/'$n.log 2>&1 &\n"
+                + "  echo $! > '" + dir + "/'$n.pid\n"
+                + "done\n"));
+
+        final FreeStyleProject decommission = r.createFreeStyleProject("decommission-agents");
+        decommission.setAssignedLabel(r.jenkins.getSelfLabel());
+        decommission.setConcurrentBuild(true);
+        decommission.addProperty(new ParametersDefinitionProperty(
+                new StringParameterDefinition("agentID", ""), new StringParameterDefinition("agentIDs", ""),
+                new StringParameterDefinition("label", "")));
+        decommission.getBuildersList().add(new Shell(
+                "for n in $(echo \"${agentIDs:-$agentID}\" | tr ',' ' '); do\n"
+                + "  if [ -f '" + dir + "/'$n.pid ]; then kill $(cat '" + dir + "/'$n.pid) || true; rm -f '" + dir + "/'$n.pid; fi\n"
+                + "done\n"));
+    }
+
+    /**
+     * Tracks the peak heap and the on demand agents created, every 100 milliseconds.
+     */
+    private void sample() {
+        while (!Thread.currentThread().isInterrupted()) {
+            peakHeap = Math.max(peakHeap, ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed());
+            for (Node node : r.jenkins.getNodes()) {
+                if (AgentIndex.labelOf(node) != null) {
+                    createdAgents.add(node.getNodeName());
+                }
+            }
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /** @return the CPU time of the controller process or -1 if the JVM does not report it */
+    private static long processCpuNanos() {
+        final OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        if (os instanceof com.sun.management.OperatingSystemMXBean) {
+            return ((com.sun.management.OperatingSystemMXBean) os).getProcessCpuTime();
+        }
+        return -1;
+    }
+}
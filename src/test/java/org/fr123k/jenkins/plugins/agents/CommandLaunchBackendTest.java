@@ -0,0 +1,94 @@
+package org.fr123k.jenkins.plugins.agents;
+
+import static org.hamcrest.CoreMatchers.containsString;
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import hudson.Functions;
+import hudson.model.Node;
+import hudson.slaves.DumbSlave;
+
+public class CommandLaunchBackendTest {
+
+    @Rule
+    public JenkinsRule r = new JenkinsRule();
+
+    @Before
+    public void shell() {
+        Assume.assumeFalse("the commands are shell scripts", Functions.isWindows());
+    }
+
+    @Test
+    public void commandGetsTheAgentParameters() throws Exception {
+        final File out = new File(r.jenkins.getRootDir(), "command-env.txt");
+        launch("command-env", new CommandLaunchBackend("echo \"$NODE $LABEL $IMAGE\" > " + out.getAbsolutePath()));
+        for (int i = 0; i < 100 && out.length() == 0; i++) {
+            Thread.sleep(100);
+        }
+        assertEquals("command-env command-env-label image",
+                new String(Files.readAllBytes(out.toPath()), StandardCharsets.UTF_8).trim());
+        assertEquals("the agent is still on the way", 1, AgentLaunchTracker.get().getPendingLaunches("command-env-label"));
+    }
+
+    @Test
+    public void failedCommandFailsTheLaunch() throws Exception {
+        final CompletableFuture<Node> launch = launch("command-failed", new CommandLaunchBackend("echo broken; exit 3"));
+        assertFailed(launch, "exited with 3");
+        // the agent is removed after its launch failed
+        for (int i = 0; i < 100 && r.jenkins.getNode("command-failed") != null; i++) {
+            Thread.sleep(100);
+        }
+        assertNull(r.jenkins.getNode("command-failed"));
+        final File log = new File(r.jenkins.getRootDir(), "logs/CommandLaunchBackend/command-failed.log");
+        assertThat(new String(Files.readAllBytes(log.toPath()), StandardCharsets.UTF_8), containsString("broken"));
+        assertEquals(1, LabelCircuitBreaker.get().getFailures("command-failed-label"));
+    }
+
+    @Test
+    public void timedOutCommandFailsTheLaunch() throws Exception {
+        final CommandLaunchBackend backend = new CommandLaunchBackend("sleep 60");
+        backend.setTimeout(1);
+        assertFailed(launch("command-timeout", backend), "did not finish within 1 seconds");
+    }
+
+    /**
+     * Adds an agent launched by the backend whose launch is tracked without retries.
+     */
+    private CompletableFuture<Node> launch(String nodeName, CommandLaunchBackend backend) throws Exception {
+        final String label = nodeName + "-label";
+        final DumbSlave agent = new DumbSlave(nodeName, "/tmp/" + nodeName,
+                new JobComputerLauncher(null, null, label, "image", null, null, backend));
+        agent.setRetentionStrategy(new JobRetentionStrategy(label, 10, 0));
+        final CompletableFuture<Node> future = new CompletableFuture<>();
+        AgentLaunchTracker.get().track(label, agent, future, 600, 0);
+        r.jenkins.addNode(agent);
+        return future;
+    }
+
+    private static void assertFailed(CompletableFuture<Node> future, String message) throws Exception {
+        try {
+            future.get(30, TimeUnit.SECONDS);
+            fail("the launch fails");
+        } catch (ExecutionException e) {
+            assertThat(e.getCause(), instanceOf(IOException.class));
+            assertThat(e.getCause().getMessage(), containsString(message));
+        }
+    }
+}
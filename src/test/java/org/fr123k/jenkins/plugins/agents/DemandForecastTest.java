@@ -0,0 +1,48 @@
+package org.fr123k.jenkins.plugins.agents;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class DemandForecastTest {
+
+    @Test
+    public void forecastFollowsTheArrivalRate() {
+        final DemandForecast forecast = DemandForecast.get();
+        for (int i = 0; i < 10; i++) {
+            forecast.arrived("forecast-rate");
+        }
+        forecast.sample();
+        assertEquals(10 * DemandForecast.ALPHA, forecast.getArrivalRate("forecast-rate"), 1e-9);
+        assertEquals((int) Math.ceil(10 * DemandForecast.ALPHA * 5), forecast.forecast("forecast-rate", 5));
+
+        forecast.sample();
+        assertEquals(10 * DemandForecast.ALPHA * (1 - DemandForecast.ALPHA), forecast.getArrivalRate("forecast-rate"), 1e-9);
+    }
+
+    @Test
+    public void idleLabelsAreForgotten() {
+        final DemandForecast forecast = DemandForecast.get();
+        forecast.arrived("forecast-idle");
+        for (int i = 0; i < 50; i++) {
+            forecast.sample();
+        }
+        assertEquals(0, forecast.getArrivalRate("forecast-idle"), 0);
+        assertEquals(0, forecast.forecast("forecast-idle", 5));
+    }
+
+    @Test
+    public void forecastAgentsAreReportedOnce() {
+        final DemandForecast forecast = DemandForecast.get();
+        final ProvisioningMetrics.LabelMetrics metrics = ProvisioningMetrics.get().label("forecast-agents");
+        forecast.planned("forecast-agents", "forecast-agents-1");
+        forecast.planned("forecast-agents", "forecast-agents-2");
+        forecast.used("forecast-agents-1");
+        forecast.removed("forecast-agents-1");
+        forecast.removed("forecast-agents-2");
+        forecast.used("forecast-agents-2");
+        assertEquals(2, metrics.getForecast());
+        assertEquals(1, metrics.getForecastUsed());
+        assertEquals(1, metrics.getForecastUnused());
+    }
+}
@@ -0,0 +1,82 @@
+package org.fr123k.jenkins.plugins.agents;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import hudson.model.Node;
+import hudson.slaves.DumbSlave;
+import hudson.slaves.JNLPLauncher;
+
+public class IdleAgentReaperTest {
+
+    @Rule
+    public JenkinsRule r = new JenkinsRule();
+
+    @Test
+    public void keepsTheMinimumIdleAgents() throws Exception {
+        final List<String> agents = expiredAgents("reap-min", 5, 2);
+        final IdleAgentReaper reaper = IdleAgentReaper.get();
+        reaper.doRun();
+        assertEquals(2, remaining(agents));
+        assertEquals(2, AgentIndex.get().count("reap-min", AgentIndex.State.IDLE));
+
+        reaper.doRun();
+        assertEquals("the minimum stays idle", 2, remaining(agents));
+    }
+
+    @Test
+    public void reapsInBatches() throws Exception {
+        final List<String> agents = expiredAgents("reap-batch", IdleAgentReaper.BATCH_SIZE + 5, 0);
+        final IdleAgentReaper reaper = IdleAgentReaper.get();
+        reaper.doRun();
+        assertEquals(5, remaining(agents));
+
+        reaper.doRun();
+        assertEquals(0, remaining(agents));
+    }
+
+    @Test
+    public void keepsAgentsThatAreBusyAgain() throws Exception {
+        final List<String> agents = expiredAgents("reap-busy", 3, 0);
+        final IdleAgentReaper reaper = IdleAgentReaper.get();
+        reaper.busy("reap-busy", agents.get(0));
+        reaper.doRun();
+        assertEquals(1, remaining(agents));
+        assertNotNull(r.jenkins.getNode(agents.get(0)));
+    }
+
+    /**
+     * Adds agents which never connect, indexes them as idle and reports them as expired.
+     */
+    private List<String> expiredAgents(String label, int count, int minIdle) throws Exception {
+        final List<String> agents = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            final String name = label + "-" + i;
+            r.jenkins.addNode(new DumbSlave(name, "/tmp/" + name, new JNLPLauncher()));
+            AgentIndex.get().update(label, name, AgentIndex.State.IDLE);
+            agents.add(name);
+        }
+        for (String name : agents) {
+            IdleAgentReaper.get().expired(label, name, minIdle);
+        }
+        return agents;
+    }
+
+    private int remaining(List<String> agents) {
+        int remaining = 0;
+        for (String name : agents) {
+            final Node node = r.jenkins.getNode(name);
+            if (node != null) {
+                remaining++;
+            }
+        }
+        return remaining;
+    }
+}
@@ -0,0 +1,126 @@
+package org.fr123k.jenkins.plugins.agents;
+
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import hudson.model.Node;
+import hudson.model.ParameterValue;
+import hudson.model.ParametersAction;
+import hudson.model.ParametersDefinitionProperty;
+import hudson.model.StringParameterDefinition;
+import hudson.model.StringParameterValue;
+import hudson.slaves.DumbSlave;
+import hudson.slaves.JNLPLauncher;
+
+public class JobTriggerBatcherTest {
+
+    @Rule
+    public JenkinsRule r = new JenkinsRule();
+
+    @Test
+    public void agentsOfAWindowShareOneBuild() throws Exception {
+        final FreeStyleProject job = provisionJob("provision-window");
+        final JobTriggerBatcher batcher = JobTriggerBatcher.get();
+        batcher.add("provision-window", parameters("window"), "nodes", "window-1", 1);
+        batcher.add("provision-window", parameters("window"), "nodes", "window-2", 1);
+        batcher.add("provision-window", parameters("other"), "nodes", "other-1", 1);
+        batcher.add("provision-window", parameters("window"), "nodes", "window-3", 1);
+        batcher.cancel("window-2");
+
+        awaitBuilds(job, 2);
+        final List<String> nodes = new ArrayList<>();
+        for (FreeStyleBuild build : job.getBuilds()) {
+            nodes.add(build.getAction(ParametersAction.class).getParameter("nodes").getValue().toString());
+        }
+        Collections.sort(nodes);
+        assertEquals("cancelled agents are left out", "[other-1, window-1,window-3]", nodes.toString());
+    }
+
+    @Test
+    public void fullBatchIsTriggeredAtOnce() throws Exception {
+        final FreeStyleProject job = provisionJob("provision-full");
+        for (int i = 0; i < JobTriggerBatcher.MAX_BATCH_SIZE; i++) {
+            JobTriggerBatcher.get().add("provision-full", parameters("full"), "nodes", "full-" + i, 600);
+        }
+        awaitBuilds(job, 1);
+        final String nodes = job.getBuilds().getLastBuild().getAction(ParametersAction.class)
+                .getParameter("nodes").getValue().toString();
+        assertEquals(JobTriggerBatcher.MAX_BATCH_SIZE, nodes.split(",").length);
+    }
+
+    @Test
+    public void missingJobFailsTheLaunches() throws Exception {
+        final CompletableFuture<Node> first = track("batch-missing", "missing-1");
+        final CompletableFuture<Node> second = track("batch-missing", "missing-2");
+        JobTriggerBatcher.get().add("provision-missing", parameters("batch-missing"), "nodes", "missing-1", 1);
+        JobTriggerBatcher.get().add("provision-missing", parameters("batch-missing"), "nodes", "missing-2", 1);
+
+        assertFailed(first, RuntimeException.class);
+        assertFailed(second, RuntimeException.class);
+        assertEquals("one failure per batch", 1, LabelCircuitBreaker.get().getFailures("batch-missing"));
+    }
+
+    @Test
+    public void unscheduledBuildFailsTheLaunches() throws Exception {
+        provisionJob("provision-disabled").disable();
+        final CompletableFuture<Node> launch = track("batch-disabled", "disabled-1");
+        JobTriggerBatcher.get().add("provision-disabled", parameters("batch-disabled"), "nodes", "disabled-1", 1);
+
+        assertFailed(launch, IllegalStateException.class);
+        assertEquals(0, AgentLaunchTracker.get().getPendingLaunches("batch-disabled"));
+    }
+
+    private FreeStyleProject provisionJob(String name) throws Exception {
+        final FreeStyleProject job = r.createFreeStyleProject(name);
+        job.setAssignedLabel(r.jenkins.getSelfLabel());
+        job.addProperty(new ParametersDefinitionProperty(
+                new StringParameterDefinition("nodes", ""), new StringParameterDefinition("label", "")));
+        return job;
+    }
+
+    private static List<ParameterValue> parameters(String label) {
+        return Collections.singletonList(new StringParameterValue("label", label));
+    }
+
+    /**
+     * Tracks the launch of an agent that is never added, without retries.
+     */
+    private static CompletableFuture<Node> track(String label, String nodeName) throws Exception {
+        final CompletableFuture<Node> future = new CompletableFuture<>();
+        AgentLaunchTracker.get().track(label, new DumbSlave(nodeName, "/tmp/" + nodeName, new JNLPLauncher()),
+                future, 600, 0);
+        return future;
+    }
+
+    private static void assertFailed(CompletableFuture<Node> future, Class<? extends Throwable> cause) throws Exception {
+        try {
+            future.get(30, TimeUnit.SECONDS);
+            fail("the launch fails");
+        } catch (ExecutionException e) {
+            assertThat(e.getCause(), instanceOf(cause));
+        }
+    }
+
+    private void awaitBuilds(FreeStyleProject job, int builds) throws Exception {
+        for (int i = 0; i < 100 && job.getBuilds().size() < builds; i++) {
+            Thread.sleep(100);
+        }
+        r.waitUntilNoActivity();
+        assertEquals(builds, job.getBuilds().size());
+    }
+}
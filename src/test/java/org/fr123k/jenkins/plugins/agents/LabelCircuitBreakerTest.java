@@ -0,0 +1,96 @@
+package org.fr123k.jenkins.plugins.agents;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class LabelCircuitBreakerTest {
+
+    private static final long SECOND = 1000;
+
+    // opens after 3 failures for 10 seconds, the probe may take 2 minutes
+    private static final int THRESHOLD = 3;
+    private static final int BACKOFF_SECONDS = 10;
+    private static final long PROBE_MILLIS = 120 * SECOND;
+
+    private final LabelCircuitBreaker breaker = new LabelCircuitBreaker();
+
+    @Test
+    public void opensAfterTheThreshold() {
+        failed("breaker", 0);
+        failed("breaker", 0);
+        assertEquals(LabelCircuitBreaker.State.CLOSED, breaker.getState("breaker", 0));
+        assertEquals(5, allow("breaker", 0));
+
+        failed("breaker", 0);
+        assertEquals(LabelCircuitBreaker.State.OPEN, breaker.getState("breaker", 0));
+        assertEquals(3, breaker.getFailures("breaker"));
+        assertEquals(0, allow("breaker", 9 * SECOND));
+    }
+
+    @Test
+    public void halfOpenAllowsOneProbe() {
+        open("breaker");
+        assertEquals(LabelCircuitBreaker.State.HALF_OPEN, breaker.getState("breaker", 10 * SECOND));
+        assertEquals(1, allow("breaker", 10 * SECOND));
+        assertEquals("probe in flight", 0, allow("breaker", 11 * SECOND));
+        assertEquals("probe timed out", 1, allow("breaker", 130 * SECOND));
+
+        breaker.notProvisioned("breaker");
+        assertEquals("probe not provisioned", 1, allow("breaker", 131 * SECOND));
+    }
+
+    @Test
+    public void failedProbeDoublesTheBackoff() {
+        open("breaker");
+        assertEquals(1, allow("breaker", 10 * SECOND));
+        failed("breaker", 10 * SECOND);
+        assertEquals(LabelCircuitBreaker.State.OPEN, breaker.getState("breaker", 29 * SECOND));
+        assertEquals(LabelCircuitBreaker.State.HALF_OPEN, breaker.getState("breaker", 30 * SECOND));
+
+        assertEquals(1, allow("breaker", 30 * SECOND));
+        failed("breaker", 30 * SECOND);
+        assertEquals(LabelCircuitBreaker.State.OPEN, breaker.getState("breaker", 69 * SECOND));
+        assertEquals(LabelCircuitBreaker.State.HALF_OPEN, breaker.getState("breaker", 70 * SECOND));
+    }
+
+    @Test
+    public void successfulProbeCloses() {
+        open("breaker");
+        assertEquals(1, allow("breaker", 10 * SECOND));
+        breaker.succeeded("breaker");
+        assertEquals(LabelCircuitBreaker.State.CLOSED, breaker.getState("breaker", 10 * SECOND));
+        assertEquals(0, breaker.getFailures("breaker"));
+        assertEquals(5, allow("breaker", 10 * SECOND));
+    }
+
+    @Test
+    public void labelsBreakIndependently() {
+        open("breaker");
+        assertEquals(5, allow("other", 0));
+    }
+
+    @Test
+    public void disabledWithoutThreshold() {
+        for (int i = 0; i < 10; i++) {
+            breaker.failed("breaker", 0, BACKOFF_SECONDS, 0);
+        }
+        assertEquals(LabelCircuitBreaker.State.CLOSED, breaker.getState("breaker", 0));
+        assertEquals(5, allow("breaker", 0));
+    }
+
+    private void open(String label) {
+        for (int i = 0; i < THRESHOLD; i++) {
+            failed(label, 0);
+        }
+        assertEquals(LabelCircuitBreaker.State.OPEN, breaker.getState(label, 0));
+    }
+
+    private int allow(String label, long now) {
+        return breaker.allow(label, 5, PROBE_MILLIS, now);
+    }
+
+    private void failed(String label, long now) {
+        breaker.failed(label, THRESHOLD, BACKOFF_SECONDS, now);
+    }
+}
@@ -0,0 +1,41 @@
+package org.fr123k.jenkins.plugins.agents;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import hudson.model.ParameterValue;
+import jenkins.benchmark.jmh.JmhBenchmark;
+
+/**
+ * Measures building the provision job parameters of an agent.
+ */
+@JmhBenchmark
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class LauncherParametersBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Launcher {
+        JobComputerLauncher launcher;
+
+        @Setup(Level.Trial)
+        public void setup() {
+            launcher = new JobComputerLauncher("https://git.local/agents.git", "master", "label-0",
+                    "registry.local/agent:label-0", "provision-agent", "decommission-agent");
+        }
+    }
+
+    @Benchmark
+    public List<ParameterValue> provisionParameters(Launcher state) {
+        return JobLaunchBackend.provisionParameters(state.launcher);
+    }
+}
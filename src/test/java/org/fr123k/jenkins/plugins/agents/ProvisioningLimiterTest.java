@@ -0,0 +1,96 @@
+package org.fr123k.jenkins.plugins.agents;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class ProvisioningLimiterTest {
+
+    private final ProvisioningLimiter limiter = new ProvisioningLimiter();
+
+    @Test
+    public void perLabelCaps() {
+        final ProvisioningLimiter.Limits limits = new ProvisioningLimiter.Limits(0, 0, 3, 2, 0, 1);
+        assertEquals("in flight per label", 2, limiter.acquire(limits, "label-caps", 5, 0));
+        assertEquals(0, limiter.acquire(limits, "label-caps", 5, 0));
+        assertFalse("capped by its own limits, not waiting", limiter.isWaiting("label-caps"));
+
+        limiter.release("label-caps", 2);
+        AgentIndex.get().update("label-caps", "label-caps-busy", AgentIndex.State.BUSY);
+        try {
+            assertEquals("agents per label", 2, limiter.acquire(limits, "label-caps", 5, 0));
+            limiter.release("label-caps", 2);
+            AgentIndex.get().update("label-caps", "label-caps-idle", AgentIndex.State.IDLE);
+            assertEquals("agents per label", 1, limiter.acquire(limits, "label-caps", 5, 0));
+        } finally {
+            AgentIndex.get().remove("label-caps-busy");
+            AgentIndex.get().remove("label-caps-idle");
+        }
+        assertEquals(1, limiter.getInFlight("label-caps"));
+    }
+
+    @Test
+    public void globalCaps() {
+        final ProvisioningLimiter.Limits limits = new ProvisioningLimiter.Limits(4, 3, 0, 0, 0, 1);
+        assertEquals(2, limiter.acquire(limits, "label-a", 2, 0));
+        assertEquals("in flight", 1, limiter.acquire(limits, "label-b", 2, 0));
+        assertTrue(limiter.isWaiting("label-b"));
+        assertEquals(3, limiter.getInFlight());
+
+        limiter.release("label-a", 2);
+        AgentIndex.get().update("label-a", "label-a-busy", AgentIndex.State.BUSY);
+        AgentIndex.get().update("label-a", "label-a-idle", AgentIndex.State.IDLE);
+        try {
+            assertEquals("agents", 1, limiter.acquire(limits, "label-b", 2, 0));
+            assertEquals(0, limiter.acquire(limits, "label-c", 1, 0));
+        } finally {
+            AgentIndex.get().remove("label-a-busy");
+            AgentIndex.get().remove("label-a-idle");
+        }
+    }
+
+    @Test
+    public void shareIsWeightedByWaitTime() {
+        final ProvisioningLimiter.Limits limits = new ProvisioningLimiter.Limits(0, 4, 0, 0, 0, 1);
+        assertEquals(4, limiter.acquire(limits, "label-share-x", 4, 0));
+        assertEquals(0, limiter.acquire(limits, "label-share-a", 6, 1000));
+        assertEquals(0, limiter.acquire(limits, "label-share-b", 6, 4000));
+
+        limiter.release("label-share-x", 4);
+        // a waited 4 and b 1 second, a gets 4/5 of the capacity
+        assertEquals(3, limiter.acquire(limits, "label-share-a", 6, 5000));
+        assertEquals(0, limiter.acquire(limits, "label-share-b", 6, 5000));
+        assertTrue(limiter.isWaiting("label-share-b"));
+    }
+
+    @Test
+    public void oldestGetsOne() {
+        final ProvisioningLimiter.Limits limits = new ProvisioningLimiter.Limits(0, 1, 0, 0, 0, 1);
+        assertEquals(1, limiter.acquire(limits, "label-oldest-x", 1, 0));
+        assertEquals(0, limiter.acquire(limits, "label-oldest-a", 5, 1000));
+        assertEquals(0, limiter.acquire(limits, "label-oldest-b", 5, 2000));
+
+        limiter.release("label-oldest-x", 1);
+        // the share of both rounds down to none, only the longest waiting label gets one
+        assertEquals(0, limiter.acquire(limits, "label-oldest-b", 5, 2500));
+        assertEquals(1, limiter.acquire(limits, "label-oldest-a", 5, 2500));
+    }
+
+    @Test
+    public void tokenBucketRefills() {
+        // 6 launches per minute with a burst of 2
+        final ProvisioningLimiter.Limits limits = new ProvisioningLimiter.Limits(0, 0, 0, 0, 6, 2);
+        assertEquals("burst", 2, limiter.acquire(limits, "label-tokens", 5, 0));
+        limiter.release("label-tokens", 2);
+        assertEquals("launched agents keep their tokens", 0, limiter.acquire(limits, "label-tokens", 5, 0));
+
+        assertEquals("one launch per 10 seconds", 1, limiter.acquire(limits, "label-tokens", 5, 10000));
+        limiter.unused("label-tokens", 1);
+        assertEquals("unused grants return their tokens", 1, limiter.acquire(limits, "label-tokens", 5, 10000));
+        limiter.release("label-tokens", 1);
+
+        assertEquals("refilled up to the burst", 2, limiter.acquire(limits, "label-tokens", 5, 600000));
+    }
+}
@@ -0,0 +1,56 @@
+package org.fr123k.jenkins.plugins.agents;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class ProvisioningMetricsTest {
+
+    private final ProvisioningMetrics metrics = ProvisioningMetrics.get();
+
+    @Test
+    public void unusedLabelsAreDropped() {
+        metrics.reclaimed("metrics-unused");
+        metrics.prune(System.currentTimeMillis());
+        assertTrue("recently updated", metrics.labels().contains("metrics-unused"));
+
+        metrics.prune(later());
+        assertFalse(metrics.labels().contains("metrics-unused"));
+    }
+
+    @Test
+    public void labelsInUseAreKept() {
+        metrics.reclaimed("metrics-agents");
+        AgentIndex.get().update("metrics-agents", "metrics-agents-1", AgentIndex.State.IDLE);
+        metrics.decided("metrics-launching", "metrics-launching-1");
+        metrics.buildable("metrics-waiting");
+        try {
+            metrics.prune(later());
+            assertTrue("has agents", metrics.labels().contains("metrics-agents"));
+            assertTrue("has launches", metrics.labels().contains("metrics-launching"));
+            assertTrue("has waiting items", metrics.labels().contains("metrics-waiting"));
+        } finally {
+            AgentIndex.get().remove("metrics-agents-1");
+            metrics.cancelled("metrics-launching-1");
+        }
+        metrics.prune(later());
+        assertFalse(metrics.labels().contains("metrics-agents"));
+        assertFalse(metrics.labels().contains("metrics-launching"));
+    }
+
+    @Test
+    public void showingALabelDoesNotKeepIt() {
+        metrics.reclaimed("metrics-shown");
+        metrics.peek("metrics-shown").getReclaimed();
+        metrics.peek("metrics-never");
+        assertFalse(metrics.labels().contains("metrics-never"));
+
+        metrics.prune(later());
+        assertFalse(metrics.labels().contains("metrics-shown"));
+    }
+
+    private static long later() {
+        return System.currentTimeMillis() + ProvisioningMetrics.RETENTION_MILLIS + 1;
+    }
+}
@@ -0,0 +1,39 @@
+package org.fr123k.jenkins.plugins.agents;
+
+/**
+ * Fills the {@link AgentIndex} with agents spread over the labels, for benchmarks which run
+ * without a Jenkins instance.
+ */
+public final class SyntheticAgents {
+
+    private static final AgentIndex.State[] STATES = {
+        AgentIndex.State.IDLE, AgentIndex.State.BUSY, AgentIndex.State.BUSY, AgentIndex.State.PROVISIONING
+    };
+
+    private SyntheticAgents() {
+    }
+
+    /**
+     * Adds {@code nodes} agents round robin to the labels, cycling through the idle, busy and
+     * provisioning states.
+     */
+    public static void populate(String[] labels, int nodes) {
+        for (int i = 0; i < nodes; i++) {
+            final String label = labels[i % labels.length];
+            AgentIndex.get().update(label, name(label, i), STATES[i % STATES.length]);
+        }
+    }
+
+    /**
+     * Removes the agents added by {@link #populate(String[], int)}.
+     */
+    public static void clear(String[] labels, int nodes) {
+        for (int i = 0; i < nodes; i++) {
+            AgentIndex.get().remove(name(labels[i % labels.length], i));
+        }
+    }
+
+    private static String name(String label, int i) {
+        return label + "-" + i;
+    }
+}